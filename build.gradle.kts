@@ -39,6 +39,7 @@ repositories {
 }
 dependencies {
     implementation(kotlin("stdlib-jdk8"))
+    testImplementation("junit:junit:4.13")
     detektPlugins("io.gitlab.arturbosch.detekt:detekt-formatting:1.10.0")
 }
 
@@ -72,6 +73,99 @@ detekt {
     }
 }
 
+// Precompile GraphQL queries: validate them, inline the fragments and emit query constants with stable hashes,
+// so the plugin doesn't read and parse query resources at runtime
+val graphQLSourceDir = file("src/main/resources/graphql")
+val graphQLGeneratedDir = file("$buildDir/generated/source/graphql")
+
+kotlin {
+    sourceSets["main"].kotlin.srcDir(graphQLGeneratedDir)
+}
+
+val compileGraphQLQueries by tasks.registering {
+    description = "Validates GraphQL queries, inlines their fragments and generates BBGQLCompiledQueries"
+    inputs.files(fileTree(graphQLSourceDir)).withPropertyName("graphQLSources")
+    outputs.dir(graphQLGeneratedDir)
+
+    doLast {
+        val fragmentDefinitionRegex = Regex("fragment (.*) on .*\\{")
+        val fragmentsDir = File(graphQLSourceDir, "fragment")
+        val queriesDir = File(graphQLSourceDir, "query")
+
+        // same normalization as the runtime loader used: trimmed lines and names of the used fragments
+        fun readCollectingFragmentNames(file: File): Pair<String, Set<String>> {
+            val body = StringBuilder()
+            val fragments = linkedSetOf<String>()
+            val innerFragments = mutableSetOf<String>()
+            var depth = 0
+            file.forEachLine { rawLine ->
+                val line = rawLine.trim()
+                body.append(line).append("\n")
+                if (line.startsWith("#")) return@forEachLine
+
+                depth += line.count { it == '{' } - line.count { it == '}' }
+                if (depth < 0) throw GradleException("Unbalanced braces in ${file.relativeTo(projectDir)}")
+
+                if (line.startsWith("fragment")) {
+                    val name = fragmentDefinitionRegex.matchEntire(line)?.groupValues?.get(1)?.trim()
+                        ?: throw GradleException("Malformed fragment definition \"$line\" in ${file.relativeTo(projectDir)}")
+                    innerFragments.add(name)
+                }
+                if (line.startsWith("...") && line.length > 3 && !line[3].isWhitespace()) {
+                    fragments.add(line.substring(3).takeWhile { it.isLetterOrDigit() || it == '_' })
+                }
+            }
+            if (depth != 0) throw GradleException("Unbalanced braces in ${file.relativeTo(projectDir)}")
+            fragments.removeAll(innerFragments)
+            return body.toString() to fragments
+        }
+
+        val fragments = mutableMapOf<String, Pair<String, Set<String>>>()
+
+        fun collectFragments(names: Set<String>, usage: File, result: LinkedHashSet<String>) {
+            for (name in names) {
+                val file = File(fragmentsDir, "$name.graphql")
+                if (!file.isFile) throw GradleException("Fragment $name used in ${usage.relativeTo(projectDir)} is not defined")
+                val fragment = fragments.getOrPut(name) { readCollectingFragmentNames(file) }
+                if (result.add(name)) collectFragments(fragment.second, file, result)
+            }
+        }
+
+        val queries = sortedMapOf<String, String>()
+        queriesDir.walkTopDown().filter { it.isFile && it.extension == "graphql" }.forEach { file ->
+            val name = file.nameWithoutExtension
+            if (queries.containsKey(name)) throw GradleException("Duplicate GraphQL query $name")
+            val (body, fragmentNames) = readCollectingFragmentNames(file)
+            val usedFragments = linkedSetOf<String>()
+            collectFragments(fragmentNames, file, usedFragments)
+
+            val text = StringBuilder()
+            for (fragment in usedFragments) text.append(fragments.getValue(fragment).first).append("\n")
+            text.append(body)
+            queries[name] = text.toString()
+        }
+
+        fun String.escape() = replace("\\", "\\\\").replace("\"", "\\\"").replace("\$", "\\\$").replace("\n", "\\n")
+        fun String.sha256() = java.security.MessageDigest.getInstance("SHA-256").digest(toByteArray(Charsets.UTF_8))
+            .joinToString("") { String.format("%02x", it) }
+
+        val output = File(graphQLGeneratedDir, "org/jetbrains/plugins/template/api/BBGQLCompiledQueries.kt")
+        output.parentFile.mkdirs()
+        output.writeText(buildString {
+            append("// Generated by the compileGraphQLQueries task, do not edit\n")
+            append("package org.jetbrains.plugins.template.api\n\n")
+            append("internal object BBGQLCompiledQueries {\n")
+            append("  val queries: Map<String, BBGQLCompiledQuery> = mapOf(\n")
+            queries.entries.joinTo(this, ",\n", postfix = "\n") { (name, text) ->
+                "    \"$name\" to BBGQLCompiledQuery(\"${text.escape()}\",\n" +
+                "                                     \"${text.sha256()}\")"
+            }
+            append("  )\n")
+            append("}\n")
+        })
+    }
+}
+
 tasks {
     // Set the compatibility versions to 1.8
     withType<JavaCompile> {
@@ -84,6 +178,13 @@ tasks {
         }
     }
 
+    getByName("compileKotlin").dependsOn(compileGraphQLQueries)
+
+    // queries are compiled into BBGQLCompiledQueries
+    processResources {
+        exclude("graphql/**")
+    }
+
     withType<Detekt> {
         jvmTarget = "1.8"
     }
@@ -40,6 +40,7 @@ import org.jetbrains.plugins.template.api.data.BitbucketBranch;
 import org.jetbrains.plugins.template.api.data.BitbucketPullRequestDetailed;
 import org.jetbrains.plugins.template.api.data.BitbucketRepo;
 import org.jetbrains.plugins.template.api.data.BitbucketRepoDetailed;
+import org.jetbrains.plugins.template.api.data.request.BitbucketRequestFieldSelection;
 import org.jetbrains.plugins.template.api.util.BitbucketApiPagesLoader;
 import org.jetbrains.plugins.template.exceptions.BitbucketConfusingException;
 import org.jetbrains.plugins.template.exceptions.BitbucketOperationCanceledException;
@@ -61,6 +62,11 @@ public class BitbucketCreatePullRequestWorker {
   private static final Logger LOG = BitbucketUtil.LOG;
   private static final String CANNOT_CREATE_PULL_REQUEST = "Can't Create Pull Request";
 
+  // forks and branches are only used to fill the selectors, so the rest of the fields is not requested
+  private static final BitbucketRequestFieldSelection FORK_FIELDS =
+    BitbucketRequestFieldSelection.fields("name", "owner.login", "default_branch");
+  private static final BitbucketRequestFieldSelection BRANCH_FIELDS = BitbucketRequestFieldSelection.fields("name");
+
   @NotNull private final Project myProject;
   @NotNull private final Git myGit;
   @NotNull private final GitRepository myGitRepository;
@@ -228,7 +234,8 @@ public class BitbucketCreatePullRequestWorker {
   @NotNull
   private List<String> loadBranches(@NotNull final BBRepositoryPath fork, @NotNull ProgressIndicator indicator) throws IOException {
     List<BitbucketBranch> branches = BitbucketApiPagesLoader
-      .loadAll(myExecutor, indicator, BitbucketApiRequests.Repos.Branches.pages(myServer, fork.getOwner(), fork.getRepository()));
+      .loadAll(myExecutor, indicator,
+               BitbucketApiRequests.Repos.Branches.pages(myServer, fork.getOwner(), fork.getRepository(), BRANCH_FIELDS));
     return ContainerUtil.map(branches, BitbucketBranch::getName);
   }
 
@@ -460,7 +467,8 @@ public class BitbucketCreatePullRequestWorker {
   private List<BBRepositoryPath> getAvailableForks(@NotNull ProgressIndicator indicator) {
     try {
       List<BitbucketRepo> forks = BitbucketApiPagesLoader
-        .loadAll(myExecutor, indicator, BitbucketApiRequests.Repos.Forks.pages(myServer, mySource.getOwner(), mySource.getRepository()));
+        .loadAll(myExecutor, indicator,
+                 BitbucketApiRequests.Repos.Forks.pages(myServer, mySource.getOwner(), mySource.getRepository(), FORK_FIELDS));
       List<BBRepositoryPath> forkPaths = ContainerUtil.map(forks, BitbucketRepo::getFullPath);
       if (!forkPaths.contains(mySource)) return ContainerUtil.append(forkPaths, mySource);
       return forkPaths;
@@ -578,7 +586,8 @@ public class BitbucketCreatePullRequestWorker {
       }
       else {
         repo = BitbucketApiPagesLoader
-          .find(myExecutor, indicator, BitbucketApiRequests.Repos.Forks.pages(myServer, mySource.getOwner(), mySource.getRepository()),
+          .find(myExecutor, indicator,
+                BitbucketApiRequests.Repos.Forks.pages(myServer, mySource.getOwner(), mySource.getRepository(), FORK_FIELDS),
                 (fork) -> StringUtil.equalsIgnoreCase(fork.getUserName(), user));
       }
 
@@ -0,0 +1,13 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.exceptions;
+
+import java.io.IOException;
+
+/**
+ * Thrown without contacting the server while it is considered to be down after a series of failed requests
+ */
+public class BitbucketServerUnavailableException extends IOException {
+  public BitbucketServerUnavailableException(String message) {
+    super(message);
+  }
+}
@@ -42,6 +42,12 @@ public class BitbucketSettings implements PersistentStateComponent<BitbucketSett
     public int CONNECTION_TIMEOUT = 5000;
     public ThreeState CREATE_PULL_REQUEST_CREATE_REMOTE = ThreeState.UNSURE;
     public boolean CLONE_GIT_USING_SSH = false;
+    public boolean USE_POOLED_CONNECTIONS = true;
+    public boolean USE_DISK_API_CACHE = false;
+    public boolean COMPRESS_REQUEST_BODIES = false;
+    public boolean USE_PERSISTED_GQL_QUERIES = false;
+    public int MAX_PARALLEL_REQUESTS_PER_SERVER = 4;
+    public boolean USE_LOCAL_PULL_REQUEST_DIFFS = false;
   }
 
   public static BitbucketSettings getInstance() {
@@ -56,6 +62,54 @@ public class BitbucketSettings implements PersistentStateComponent<BitbucketSett
     myState.CONNECTION_TIMEOUT = timeout;
   }
 
+  public boolean isUsePooledConnections() {
+    return myState.USE_POOLED_CONNECTIONS;
+  }
+
+  public void setUsePooledConnections(boolean value) {
+    myState.USE_POOLED_CONNECTIONS = value;
+  }
+
+  public boolean isUseDiskApiCache() {
+    return myState.USE_DISK_API_CACHE;
+  }
+
+  public void setUseDiskApiCache(boolean value) {
+    myState.USE_DISK_API_CACHE = value;
+  }
+
+  public boolean isCompressRequestBodies() {
+    return myState.COMPRESS_REQUEST_BODIES;
+  }
+
+  public void setCompressRequestBodies(boolean value) {
+    myState.COMPRESS_REQUEST_BODIES = value;
+  }
+
+  public boolean isUsePersistedGQLQueries() {
+    return myState.USE_PERSISTED_GQL_QUERIES;
+  }
+
+  public void setUsePersistedGQLQueries(boolean value) {
+    myState.USE_PERSISTED_GQL_QUERIES = value;
+  }
+
+  public int getMaxParallelRequestsPerServer() {
+    return myState.MAX_PARALLEL_REQUESTS_PER_SERVER;
+  }
+
+  public void setMaxParallelRequestsPerServer(int value) {
+    myState.MAX_PARALLEL_REQUESTS_PER_SERVER = value;
+  }
+
+  public boolean isUseLocalPullRequestDiffs() {
+    return myState.USE_LOCAL_PULL_REQUEST_DIFFS;
+  }
+
+  public void setUseLocalPullRequestDiffs(boolean value) {
+    myState.USE_LOCAL_PULL_REQUEST_DIFFS = value;
+  }
+
   public boolean isOpenInBrowserGist() {
     return myState.OPEN_IN_BROWSER_GIST;
   }
@@ -0,0 +1,312 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.node.ArrayNode
+import com.fasterxml.jackson.databind.node.JsonNodeFactory
+import com.fasterxml.jackson.databind.node.ObjectNode
+import com.fasterxml.jackson.databind.node.TextNode
+import com.intellij.util.ThrowableConvertor
+import org.jetbrains.plugins.template.api.BitbucketApiRequest.Post.GQLQuery
+import org.jetbrains.plugins.template.api.data.graphql.BBGQLQueryRequest
+import java.io.IOException
+
+/**
+ * Several GraphQL queries merged into a single query
+ *
+ * Top-level fields of every query are prefixed with an alias unique for the query and its variables are renamed,
+ * so the queries do not clash. Response is split back by the aliases and every query binds its own result from the split tree.
+ */
+internal class BBGQLBatchRequest private constructor(url: String,
+                                                     private val queries: List<GQLQuery<*>>,
+                                                     private val encodedBody: ByteArray,
+                                                     acceptMimeType: String?)
+  : BitbucketApiRequest.Post<List<BBGQLBatchRequest.Outcome>>(BitbucketApiContentHelper.JSON_MIME_TYPE, url, acceptMimeType) {
+
+  override val tokenHeaderType = BitbucketApiRequestExecutor.TokenHeaderType.BEARER
+
+  override fun encodeBody() = encodedBody
+
+  override fun extractResult(response: BitbucketApiResponse): List<Outcome> {
+    val tree = response.readBody(ThrowableConvertor { BitbucketApiContentHelper.readJsonObject(it, JsonNode::class.java) })
+    val data = tree.get("data")?.takeIf { it.isObject }
+    val errors = tree.get("errors")?.takeIf { it.isArray }
+
+    return queries.mapIndexed { index, query ->
+      val prefix = aliasPrefix(index)
+      val queryResponse = JsonNodeFactory.instance.objectNode()
+
+      val queryErrors = queryResponse.putArray("errors")
+      errors?.forEach { error -> splitError(error, prefix)?.let { queryErrors.add(it) } }
+      if (queryErrors.size() == 0) queryResponse.putNull("errors")
+
+      val queryData = JsonNodeFactory.instance.objectNode()
+      data?.fields()?.forEach { (field, value) -> if (field.startsWith(prefix)) queryData.replace(field.removePrefix(prefix), value) }
+      if (data == null || (queryData.size() == 0 && queryErrors.size() != 0)) queryResponse.putNull("data")
+      else queryResponse.replace("data", queryData)
+
+      try {
+        Outcome(query.extractResult(queryResponse), null)
+      }
+      catch (e: Exception) {
+        Outcome(null, e)
+      }
+    }
+  }
+
+  /**
+   * @return error related to the query with [prefix] with the alias removed from its path or null if the error is related to other query
+   */
+  private fun splitError(error: JsonNode, prefix: String): JsonNode? {
+    val path = error.get("path") as? ArrayNode
+    val field = path?.get(0)?.takeIf { it.isTextual }?.asText() ?: return error
+    if (!ALIAS_REGEX.matches(field)) return error
+    if (!field.startsWith(prefix)) return null
+
+    val copy = error.deepCopy<JsonNode>() as ObjectNode
+    (copy.get("path") as ArrayNode).set(0, TextNode(field.removePrefix(prefix)))
+    return copy
+  }
+
+  class Outcome(val value: Any?, val error: Exception?)
+
+  companion object {
+    private const val OPERATION_NAME = "BatchedQuery"
+    private val ALIAS_REGEX = Regex("q\\d+_.*")
+
+    private fun aliasPrefix(index: Int) = "q${index}_"
+    private fun variableSuffix(index: Int) = "_q$index"
+
+    /**
+     * @return null if the queries can't be merged, i.e. some of them are mutations, have top-level fragment spreads,
+     * use variables in fragments or define different fragments with the same name
+     */
+    @Throws(IOException::class)
+    fun create(queries: List<GQLQuery<*>>): BBGQLBatchRequest? {
+      val url = queries.first().url
+      if (queries.any { it.url != url || it.additionalHeaders.isNotEmpty() }) return null
+
+      val fragments = LinkedHashMap<String, String>()
+      val variableDefinitions = mutableListOf<String>()
+      val selections = StringBuilder()
+      val variables = LinkedHashMap<String, Any?>()
+
+      for ((index, query) in queries.withIndex()) {
+        val queryVariables = query.variablesObject as? Map<*, *> ?: return null
+        var operation: String? = null
+        for (definition in splitDefinitions(BBGQLQueryLoader.loadQuery(query.queryName))) {
+          if (definition.startsWith("fragment")) {
+            if (definition.contains('$')) return null
+            val name = definition.removePrefix("fragment").trimStart().takeWhile(::isNameChar)
+            val existing = fragments.putIfAbsent(name, definition)
+            if (existing != null && existing != definition) return null
+          }
+          else {
+            if (operation != null) return null
+            operation = definition
+          }
+        }
+        if (operation == null || !(operation.startsWith("{") || operation.startsWith("query"))) return null
+
+        val suffix = variableSuffix(index)
+        val renamed = renameVariables(operation, suffix)
+        val selectionsStart = findSelectionsStart(renamed)
+        if (selectionsStart < 0) return null
+        val header = renamed.substring(0, selectionsStart)
+        val definitionsStart = header.indexOf('(')
+        if (definitionsStart >= 0) {
+          val definitionsEnd = header.lastIndexOf(')')
+          if (definitionsEnd < definitionsStart) return null
+          val definitions = header.substring(definitionsStart + 1, definitionsEnd)
+          variableDefinitions.add(definitions)
+          for (match in VARIABLE_REGEX.findAll(definitions)) {
+            val name = match.groupValues[1].removeSuffix(suffix)
+            if (queryVariables.containsKey(name)) variables[name + suffix] = queryVariables[name]
+          }
+        }
+        val aliased = aliasSelections(renamed.substring(selectionsStart + 1, renamed.length - 1), aliasPrefix(index)) ?: return null
+        selections.append(aliased).append("\n")
+      }
+
+      val builder = StringBuilder()
+      for (fragment in fragments.values) builder.append(fragment).append("\n")
+      builder.append("query ").append(OPERATION_NAME)
+      if (variableDefinitions.isNotEmpty()) variableDefinitions.joinTo(builder, ", ", "(", ")")
+      builder.append(" {\n").append(selections).append("}")
+
+      val acceptMimeType = queries.mapNotNull { it.acceptMimeType }
+        .flatMap { it.split(',') }.map { it.trim() }.filter { it.isNotEmpty() }.distinct()
+        .takeIf { it.isNotEmpty() }?.joinToString(",")
+
+      val body = BitbucketApiContentHelper.toJsonBytes(BBGQLQueryRequest(builder.toString(), variables), true)
+      return BBGQLBatchRequest(url, queries, body, acceptMimeType).apply {
+        operationName = "batch of ${queries.size} queries"
+        priority = if (queries.any { it.priority == BitbucketApiRequest.Priority.USER }) BitbucketApiRequest.Priority.USER
+                   else BitbucketApiRequest.Priority.BACKGROUND
+      }
+    }
+
+    private val VARIABLE_REGEX = Regex("\\$([_A-Za-z][_0-9A-Za-z]*)")
+
+    /**
+     * Splits the document to top-level operation and fragment definitions
+     */
+    private fun splitDefinitions(document: String): List<String> {
+      val result = mutableListOf<String>()
+      var depth = 0
+      var start = -1
+      var i = 0
+      while (i < document.length) {
+        val c = document[i]
+        if (start < 0 && !c.isWhitespace() && c != ',' && c != '#') start = i
+        when (c) {
+          '#' -> {
+            i = skipComment(document, i)
+            continue
+          }
+          '"' -> {
+            i = skipString(document, i)
+            continue
+          }
+          '{' -> depth++
+          '}' -> {
+            depth--
+            if (depth == 0 && start >= 0) {
+              result.add(document.substring(start, i + 1))
+              start = -1
+            }
+          }
+        }
+        i++
+      }
+      return result
+    }
+
+    private fun findSelectionsStart(operation: String): Int {
+      var parens = 0
+      var i = 0
+      while (i < operation.length) {
+        when (operation[i]) {
+          '"' -> {
+            i = skipString(operation, i)
+            continue
+          }
+          '(' -> parens++
+          ')' -> parens--
+          '{' -> if (parens == 0) return i
+        }
+        i++
+      }
+      return -1
+    }
+
+    private fun renameVariables(text: String, suffix: String): String {
+      val result = StringBuilder(text.length)
+      var i = 0
+      while (i < text.length) {
+        val c = text[i]
+        when {
+          c == '"' -> {
+            val end = skipString(text, i)
+            result.append(text, i, end)
+            i = end
+          }
+          c == '#' -> {
+            i = skipComment(text, i)
+          }
+          c == '$' -> {
+            val end = skipName(text, i + 1)
+            result.append(text, i, end).append(suffix)
+            i = end
+          }
+          else -> {
+            result.append(c)
+            i++
+          }
+        }
+      }
+      return result.toString()
+    }
+
+    /**
+     * Prefixes the names of top-level fields of the selection set with [prefix]
+     *
+     * @return null if the selection set contains top-level fragment spreads which can't be aliased
+     */
+    private fun aliasSelections(selections: String, prefix: String): String? {
+      val result = StringBuilder(selections.length)
+      var depth = 0
+      var expectFieldName = false
+      var i = 0
+      while (i < selections.length) {
+        val c = selections[i]
+        when {
+          c == '"' -> {
+            val end = skipString(selections, i)
+            result.append(selections, i, end)
+            i = end
+            continue
+          }
+          c == '{' || c == '(' || c == '[' -> depth++
+          c == '}' || c == ')' || c == ']' -> depth--
+          depth == 0 && c == '.' -> return null
+          depth == 0 && c == '@' -> {
+            val end = skipName(selections, i + 1)
+            result.append(selections, i, end)
+            i = end
+            continue
+          }
+          depth == 0 && isNameChar(c) -> {
+            val end = skipName(selections, i)
+            val name = selections.substring(i, end)
+            when {
+              expectFieldName -> {
+                expectFieldName = false
+                result.append(name)
+              }
+              selections.substring(end).trimStart().startsWith(":") -> {
+                expectFieldName = true
+                result.append(prefix).append(name)
+              }
+              else -> result.append(prefix).append(name).append(": ").append(name)
+            }
+            i = end
+            continue
+          }
+        }
+        result.append(c)
+        i++
+      }
+      return result.toString()
+    }
+
+    private fun isNameChar(c: Char) = c == '_' || c in 'a'..'z' || c in 'A'..'Z' || c in '0'..'9'
+
+    private fun skipName(text: String, start: Int): Int {
+      var i = start
+      while (i < text.length && isNameChar(text[i])) i++
+      return i
+    }
+
+    private fun skipComment(text: String, start: Int): Int {
+      val end = text.indexOf('\n', start)
+      return if (end < 0) text.length else end
+    }
+
+    private fun skipString(text: String, start: Int): Int {
+      if (text.startsWith("\"\"\"", start)) {
+        val end = text.indexOf("\"\"\"", start + 3)
+        return if (end < 0) text.length else end + 3
+      }
+      var i = start + 1
+      while (i < text.length) {
+        when (text[i]) {
+          '\\' -> i++
+          '"' -> return i + 1
+        }
+        i++
+      }
+      return text.length
+    }
+  }
+}
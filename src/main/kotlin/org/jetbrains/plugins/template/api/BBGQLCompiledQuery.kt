@@ -0,0 +1,7 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api
+
+/**
+ * Query text with inlined fragments and SHA-256 hash of the text, generated at build time by compileGraphQLQueries task
+ */
+internal class BBGQLCompiledQuery(val text: String, val hash: String)
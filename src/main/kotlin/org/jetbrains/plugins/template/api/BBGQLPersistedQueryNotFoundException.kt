@@ -0,0 +1,9 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api
+
+import java.io.IOException
+
+/**
+ * Server doesn't know the hash of the persisted query or doesn't support persisted queries at all
+ */
+class BBGQLPersistedQueryNotFoundException(message: String?, val isNotSupported: Boolean) : IOException(message)
@@ -0,0 +1,52 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api
+
+import org.jetbrains.plugins.template.api.BitbucketApiRequest.Post.GQLQuery
+import org.jetbrains.plugins.template.api.data.graphql.BBGQLPersistedQueryExtensions
+import org.jetbrains.plugins.template.api.data.graphql.BBGQLQueryRequest
+import org.jetbrains.plugins.template.api.data.graphql.BBGQLSyntaxError
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Sends [query] using persisted query protocol
+ *
+ * With [hashOnly] only the hash of the query is sent along with the variables, otherwise the full text is sent
+ * with the hash so the server can register the query. Result is extracted by [query].
+ */
+internal class BBGQLPersistedQueryRequest<out T>(private val query: GQLQuery<T>, private val hashOnly: Boolean)
+  : BitbucketApiRequest.Post<T>(BitbucketApiContentHelper.JSON_MIME_TYPE, query.url, query.acceptMimeType) {
+
+  init {
+    headers.putAll(query.additionalHeaders)
+    operationName = query.operationName
+    priority = query.priority
+  }
+
+  override val tokenHeaderType = BitbucketApiRequestExecutor.TokenHeaderType.BEARER
+
+  override fun encodeBody(): ByteArray {
+    val text = if (hashOnly) null else BBGQLQueryLoader.loadQuery(query.queryName)
+    val extensions = BBGQLPersistedQueryExtensions(BBGQLQueryLoader.getQueryHash(query.queryName))
+    return BitbucketApiContentHelper.toJsonBytes(BBGQLQueryRequest(text, query.variablesObject, extensions), true)
+  }
+
+  override fun extractResult(response: BitbucketApiResponse): T = query.extractResult(response)
+
+  companion object {
+    const val NOT_FOUND_ERROR = "PersistedQueryNotFound"
+    const val NOT_SUPPORTED_ERROR = "PersistedQueryNotSupported"
+
+    /**
+     * GraphQL endpoints which reported that persisted queries are not supported
+     */
+    private val unsupportedEndpoints = ConcurrentHashMap.newKeySet<String>()
+
+    fun isPersistedQueryError(error: BBGQLSyntaxError) = error.message == NOT_FOUND_ERROR || error.message == NOT_SUPPORTED_ERROR
+
+    fun isSupported(url: String) = !unsupportedEndpoints.contains(url)
+
+    fun setNotSupported(url: String) {
+      unsupportedEndpoints.add(url)
+    }
+  }
+}
@@ -0,0 +1,129 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api
+
+import com.intellij.concurrency.JobScheduler
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import org.jetbrains.annotations.CalledInAny
+import org.jetbrains.annotations.CalledInBackground
+import org.jetbrains.plugins.template.api.BitbucketApiRequest.Post.GQLQuery
+import org.jetbrains.plugins.template.util.BitbucketAsyncUtil
+import org.jetbrains.plugins.template.util.NonReusableEmptyProgressIndicator
+import java.io.IOException
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * Merges GraphQL queries issued within a short window into a single request
+ *
+ * Queries to the same endpoint are collected for [windowMs] after the first one and sent as [BBGQLBatchRequest],
+ * every caller receives the result of its own query. Queries which can't be merged are executed as is.
+ * [flush] sends the collected queries right away, so a group of queries can be batched explicitly.
+ */
+class BBGQLRequestBatcher @JvmOverloads constructor(private val executor: BitbucketApiRequestExecutor,
+                                                    private val windowMs: Long = DEFAULT_WINDOW_MS) {
+
+  private val pending = mutableMapOf<String, MutableList<Entry<*>>>()
+
+  /**
+   * Cancelling the returned future or [indicator] cancels the query, the merged request is aborted when all its queries are cancelled
+   */
+  @CalledInAny
+  fun <T> executeAsync(indicator: ProgressIndicator, query: GQLQuery<T>): CompletableFuture<T> {
+    val entry = Entry(query, indicator)
+    val full = synchronized(pending) {
+      val entries = pending.getOrPut(query.url) { mutableListOf() }
+      entries.add(entry)
+      if (entries.size == 1) JobScheduler.getScheduler().schedule({ flush(query.url) }, windowMs, TimeUnit.MILLISECONDS)
+      entries.size >= MAX_BATCH_SIZE
+    }
+    if (full) flush(query.url)
+    return entry.future
+  }
+
+  @CalledInBackground
+  @Throws(IOException::class, ProcessCanceledException::class)
+  fun <T> execute(indicator: ProgressIndicator, query: GQLQuery<T>): T =
+    BitbucketAsyncUtil.awaitFuture(indicator, executeAsync(indicator, query))
+
+  @CalledInAny
+  fun flush() {
+    val urls = synchronized(pending) { pending.keys.toList() }
+    urls.forEach { flush(it) }
+  }
+
+  private fun flush(url: String) {
+    val entries = synchronized(pending) { pending.remove(url) } ?: return
+    for (entry in entries) {
+      if (entry.indicator.isCanceled) entry.future.completeExceptionally(ProcessCanceledException())
+    }
+    val active = entries.filter { !it.future.isDone }
+    if (active.isEmpty()) return
+
+    val batch = if (active.size > 1) {
+      try {
+        BBGQLBatchRequest.create(active.map { it.query })
+      }
+      catch (e: IOException) {
+        LOG.warn("Failed to merge queries", e)
+        null
+      }
+    }
+    else null
+
+    if (batch == null) {
+      active.forEach { it.executeAlone() }
+      return
+    }
+
+    LOG.debug("Merged ${active.size} queries to $url")
+    val batchFuture = executor.executeAsync(NonReusableEmptyProgressIndicator(), batch)
+    for (entry in active) {
+      entry.onCancel = { if (active.all { it.future.isDone }) batchFuture.cancel(true) }
+    }
+    batchFuture.whenComplete { outcomes, error ->
+      for ((index, entry) in active.withIndex()) {
+        if (error != null) entry.future.completeExceptionally(error)
+        else {
+          entry.query.exchangeTimeMs = batch.exchangeTimeMs
+          entry.complete(outcomes[index])
+        }
+      }
+    }
+  }
+
+  private inner class Entry<T>(val query: GQLQuery<T>, val indicator: ProgressIndicator) {
+    @Volatile
+    var onCancel: () -> Unit = {}
+
+    val future = object : CompletableFuture<T>() {
+      override fun cancel(mayInterruptIfRunning: Boolean) = super.cancel(mayInterruptIfRunning).also { onCancel() }
+    }
+
+    fun executeAlone() {
+      val queryFuture = executor.executeAsync(indicator, query)
+      onCancel = { queryFuture.cancel(true) }
+      queryFuture.whenComplete { result, error ->
+        if (error != null) future.completeExceptionally(error) else future.complete(result)
+      }
+    }
+
+    fun complete(outcome: BBGQLBatchRequest.Outcome) {
+      val error = outcome.error
+      @Suppress("UNCHECKED_CAST")
+      when {
+        indicator.isCanceled -> future.completeExceptionally(ProcessCanceledException())
+        error != null -> future.completeExceptionally(error)
+        else -> future.complete(outcome.value as T)
+      }
+    }
+  }
+
+  companion object {
+    private val LOG = logger<BBGQLRequestBatcher>()
+
+    private const val DEFAULT_WINDOW_MS = 20L
+    private const val MAX_BATCH_SIZE = 10
+  }
+}
@@ -0,0 +1,116 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api
+
+import com.intellij.concurrency.JobScheduler
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.progress.ProgressIndicator
+import java.io.FilterInputStream
+import java.io.InputStream
+import java.net.HttpURLConnection
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Aborts in-flight exchanges when their progress indicator is cancelled
+ *
+ * Blocked socket reads do not check the indicator, so active exchanges are polled and the connection of a cancelled one
+ * is disconnected, which closes the socket and makes the blocked read fail.
+ * Polling is only scheduled while there are active exchanges.
+ */
+internal object BitbucketApiCancellationWatcher {
+  private val LOG = logger<BitbucketApiCancellationWatcher>()
+
+  private const val CHECK_INTERVAL_MS = 100L
+
+  private val watches = ConcurrentHashMap.newKeySet<Watch>()
+  private val savedBytes = AtomicLong()
+  private val abortedExchanges = AtomicLong()
+
+  private var checkJob: ScheduledFuture<*>? = null
+
+  /**
+   * Total number of response bytes which were not downloaded because the exchange was aborted
+   */
+  fun getSavedBytes() = savedBytes.get()
+
+  fun getAbortedExchangesCount() = abortedExchanges.get()
+
+  @Synchronized
+  fun watch(connection: HttpURLConnection, indicator: ProgressIndicator): Watch {
+    val watch = Watch(connection, indicator)
+    watches.add(watch)
+    if (checkJob == null) {
+      checkJob = JobScheduler.getScheduler().scheduleWithFixedDelay(::checkCancelled, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS,
+                                                                   TimeUnit.MILLISECONDS)
+    }
+    return watch
+  }
+
+  @Synchronized
+  private fun unwatch(watch: Watch): Boolean {
+    if (!watches.remove(watch)) return false
+    if (watches.isEmpty()) {
+      checkJob?.cancel(false)
+      checkJob = null
+    }
+    return true
+  }
+
+  private fun checkCancelled() {
+    for (watch in watches) {
+      if (watch.indicator.isCanceled) watch.abort()
+    }
+  }
+
+  class Watch internal constructor(private val connection: HttpURLConnection, internal val indicator: ProgressIndicator) {
+    private val bytesRead = AtomicLong()
+
+    @Volatile
+    private var contentLength = -1L
+
+    @Volatile
+    var isAborted = false
+      private set
+
+    /**
+     * Wraps the raw (not decoded) response stream to count the transferred bytes
+     * Should be called when the response headers are received
+     */
+    fun countingStream(stream: InputStream): InputStream {
+      contentLength = connection.contentLengthLong
+      return CountingInputStream(stream)
+    }
+
+    private inner class CountingInputStream(stream: InputStream) : FilterInputStream(stream) {
+      override fun read(): Int = super.read().also { if (it >= 0) bytesRead.incrementAndGet() }
+
+      override fun read(b: ByteArray, off: Int, len: Int): Int = super.read(b, off, len).also { if (it > 0) bytesRead.addAndGet(it.toLong()) }
+
+      override fun skip(n: Long): Long = super.skip(n).also { bytesRead.addAndGet(it) }
+    }
+
+    internal fun abort() {
+      if (!unwatch(this)) return
+      isAborted = true
+      connection.disconnect()
+      abortedExchanges.incrementAndGet()
+
+      // content length is only known when the headers were received and the body is not chunked
+      val contentLength = contentLength
+      if (contentLength > 0) {
+        val saved = (contentLength - bytesRead.get()).coerceAtLeast(0)
+        savedBytes.addAndGet(saved)
+        LOG.debug("Request: ${connection.requestMethod} ${connection.url} : Aborted, $saved bytes of $contentLength were not downloaded")
+      }
+      else {
+        LOG.debug("Request: ${connection.requestMethod} ${connection.url} : Aborted after ${bytesRead.get()} bytes")
+      }
+    }
+
+    fun stop() {
+      unwatch(this)
+    }
+  }
+}
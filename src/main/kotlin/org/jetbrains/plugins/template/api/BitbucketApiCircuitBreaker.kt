@@ -0,0 +1,173 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api
+
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.util.EventDispatcher
+import org.jetbrains.plugins.template.exceptions.BitbucketServerUnavailableException
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.math.min
+
+/**
+ * Tracks transient failures of requests to every server and makes requests fail fast while the server is down
+ *
+ * After [FAILURES_THRESHOLD] consecutive failures the circuit is opened and requests are rejected
+ * with [BitbucketServerUnavailableException]. When the open period ends a single probe request is let through,
+ * its success closes the circuit and its failure opens it again for a longer period.
+ * Current state and retry statistics of every server can be inspected via [getStatus] and [addListener].
+ */
+class BitbucketApiCircuitBreaker internal constructor() {
+  private val circuits = ConcurrentHashMap<BitbucketServerPath, Circuit>()
+  private val eventDispatcher = EventDispatcher.create(StateListener::class.java)
+
+  fun getStatus(server: BitbucketServerPath): Status = circuits[server]?.getStatus() ?: Status.INITIAL
+
+  fun getStatuses(): Map<BitbucketServerPath, Status> = circuits.mapValues { it.value.getStatus() }
+
+  fun addListener(listener: StateListener, disposable: Disposable) = eventDispatcher.addListener(listener, disposable)
+
+  /**
+   * @throws BitbucketServerUnavailableException if the circuit is open or another request is probing the server
+   */
+  @Throws(BitbucketServerUnavailableException::class)
+  internal fun acquire(server: BitbucketServerPath) = getCircuit(server).acquire()
+
+  internal fun onSuccess(server: BitbucketServerPath) = getCircuit(server).onSuccess()
+
+  internal fun onFailure(server: BitbucketServerPath, error: Exception) = getCircuit(server).onFailure(error)
+
+  /**
+   * Request was cancelled or failed for a reason which tells nothing about server state
+   */
+  internal fun onAbandoned(server: BitbucketServerPath) = getCircuit(server).onAbandoned()
+
+  internal fun onRetry(server: BitbucketServerPath) = getCircuit(server).onRetry()
+
+  private fun getCircuit(server: BitbucketServerPath) = circuits.computeIfAbsent(server) { Circuit(it) }
+
+  private inner class Circuit(private val server: BitbucketServerPath) {
+    private var state = State.CLOSED
+    private var consecutiveFailures = 0
+    private var openPeriod = MIN_OPEN_PERIOD_MS
+    private var openUntil = 0L
+    private var probeInFlight = false
+    private var retries = 0L
+    private var lastError: String? = null
+
+    @Synchronized
+    fun getStatus() = Status(state, consecutiveFailures, retries, lastError, openUntil)
+
+    fun acquire() {
+      synchronized(this) {
+        when (state) {
+          State.CLOSED -> return
+          State.OPEN -> {
+            if (System.currentTimeMillis() < openUntil) throw unavailable()
+            probeInFlight = true
+            setState(State.HALF_OPEN)
+          }
+          State.HALF_OPEN -> {
+            if (probeInFlight) throw unavailable()
+            probeInFlight = true
+          }
+        }
+      }
+      LOG.debug("Probing $server")
+    }
+
+    @Synchronized
+    fun onSuccess() {
+      consecutiveFailures = 0
+      probeInFlight = false
+      if (state != State.CLOSED) {
+        openPeriod = MIN_OPEN_PERIOD_MS
+        setState(State.CLOSED)
+      }
+    }
+
+    @Synchronized
+    fun onFailure(error: Exception) {
+      consecutiveFailures++
+      lastError = error.message ?: error.javaClass.simpleName
+      when (state) {
+        State.CLOSED -> if (consecutiveFailures >= FAILURES_THRESHOLD) open()
+        State.HALF_OPEN -> {
+          probeInFlight = false
+          openPeriod = min(openPeriod * 2, MAX_OPEN_PERIOD_MS)
+          open()
+        }
+        State.OPEN -> Unit
+      }
+    }
+
+    @Synchronized
+    fun onAbandoned() {
+      probeInFlight = false
+    }
+
+    @Synchronized
+    fun onRetry() {
+      retries++
+    }
+
+    private fun open() {
+      openUntil = System.currentTimeMillis() + openPeriod
+      setState(State.OPEN)
+    }
+
+    private fun setState(newState: State) {
+      LOG.debug("Circuit for $server: $state -> $newState")
+      state = newState
+      eventDispatcher.multicaster.stateChanged(server, getStatus())
+    }
+
+    private fun unavailable() = BitbucketServerUnavailableException("$server is not responding: ${lastError.orEmpty()}")
+  }
+
+  enum class State {
+    /**
+     * Requests are executed normally
+     */
+    CLOSED,
+
+    /**
+     * Requests are rejected
+     */
+    OPEN,
+
+    /**
+     * Single probe request is in flight
+     */
+    HALF_OPEN
+  }
+
+  class Status(val state: State,
+               val consecutiveFailures: Int,
+               val retries: Long,
+               val lastError: String?,
+               val openUntil: Long) {
+    override fun toString() = "$state (failures: $consecutiveFailures, retries: $retries, last error: $lastError)"
+
+    companion object {
+      internal val INITIAL = Status(State.CLOSED, 0, 0, null, 0)
+    }
+  }
+
+  interface StateListener : EventListener {
+    fun stateChanged(server: BitbucketServerPath, status: Status)
+  }
+
+  companion object {
+    private val LOG = logger<BitbucketApiCircuitBreaker>()
+
+    private const val FAILURES_THRESHOLD = 5
+    private const val MIN_OPEN_PERIOD_MS = 10 * 1000L
+    private const val MAX_OPEN_PERIOD_MS = 2 * 60 * 1000L
+
+    private val INSTANCE by lazy { BitbucketApiCircuitBreaker() }
+
+    @JvmStatic
+    fun getInstance(): BitbucketApiCircuitBreaker = INSTANCE
+  }
+}
@@ -3,19 +3,33 @@ package org.jetbrains.plugins.template.api
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect
 import com.fasterxml.jackson.annotation.JsonInclude
+import com.fasterxml.jackson.core.JsonGenerator
 import com.fasterxml.jackson.core.JsonParseException
+import com.fasterxml.jackson.core.JsonParser
 import com.fasterxml.jackson.core.JsonProcessingException
+import com.fasterxml.jackson.core.JsonToken
 import com.fasterxml.jackson.databind.*
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer
 import com.fasterxml.jackson.databind.introspect.VisibilityChecker
+import com.fasterxml.jackson.databind.module.SimpleModule
+import com.fasterxml.jackson.databind.ser.std.StdSerializer
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import org.jetbrains.plugins.template.api.data.BitbucketResponsePage
+import org.jetbrains.plugins.template.api.data.graphql.BBGQLResponse
+import org.jetbrains.plugins.template.api.data.graphql.BBGQLSyntaxError
 import org.jetbrains.plugins.template.exceptions.BitbucketJsonException
 
 import java.awt.Image
 import java.io.IOException
 import java.io.InputStream
 import java.io.Reader
-import java.text.SimpleDateFormat
+import java.time.LocalDateTime
+import java.time.ZoneId
+import java.time.ZonedDateTime
+import java.time.format.DateTimeFormatter
+import java.time.format.DateTimeParseException
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import javax.imageio.ImageIO
 
 object BitbucketApiContentHelper {
@@ -24,14 +38,46 @@ object BitbucketApiContentHelper {
   const val V3_HTML_JSON_MIME_TYPE = "application/vnd.github.v3.html+json"
   const val V3_DIFF_JSON_MIME_TYPE = "application/vnd.github.v3.diff+json"
 
+  /**
+   * [java.time] formatters are immutable, unlike [java.text.SimpleDateFormat] which Jackson has to clone for every date
+   */
+  private val DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssXXX")
+
+  private val dateModule = SimpleModule("BitbucketDates")
+    .addSerializer(Date::class.java, object : StdSerializer<Date>(Date::class.java) {
+      override fun serialize(value: Date, gen: JsonGenerator, provider: SerializerProvider) =
+        gen.writeString(DATE_FORMATTER.format(value.toInstant().atZone(ZoneId.systemDefault())))
+    })
+    .addDeserializer(Date::class.java, object : StdDeserializer<Date>(Date::class.java) {
+      override fun deserialize(parser: JsonParser, context: DeserializationContext): Date? {
+        if (parser.currentToken == JsonToken.VALUE_NUMBER_INT) return Date(parser.longValue)
+        val text = parser.valueAsString?.trim()
+        if (text.isNullOrEmpty()) return null
+        return try {
+          val parsed = DateTimeFormatter.ISO_DATE_TIME.parseBest(text, ZonedDateTime::from, LocalDateTime::from)
+          val instant = if (parsed is ZonedDateTime) parsed.toInstant() else (parsed as LocalDateTime).atZone(ZoneId.systemDefault()).toInstant()
+          Date.from(instant)
+        }
+        catch (e: DateTimeParseException) {
+          context.handleWeirdStringValue(Date::class.java, text, e.message) as Date?
+        }
+      }
+    })
+
   private val jackson: ObjectMapper = jacksonObjectMapper().genericConfig()
     .setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE)
 
   private val gqlJackson: ObjectMapper = jacksonObjectMapper().genericConfig()
     .setPropertyNamingStrategy(PropertyNamingStrategy.LOWER_CAMEL_CASE)
 
+  /**
+   * Readers and writers are immutable and keep resolved (de)serializers, so they are cached per type
+   */
+  private val readers = ConcurrentHashMap<ReaderKey, ObjectReader>()
+  private val writers = ConcurrentHashMap<Pair<Class<*>, Boolean>, ObjectWriter>()
+
   private fun ObjectMapper.genericConfig(): ObjectMapper =
-    this.setDateFormat(SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX"))
+    this.registerModule(dateModule)
       .setTimeZone(TimeZone.getDefault())
       .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
       .configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false)
@@ -49,7 +95,7 @@ object BitbucketApiContentHelper {
   @Throws(BitbucketJsonException::class)
   fun <T> fromJson(string: String, clazz: Class<T>, gqlNaming: Boolean = false): T {
     try {
-      return getObjectMapper(gqlNaming).readValue(string, clazz)
+      return getReader(ReaderKey(clazz, emptyList(), gqlNaming)).readValue(string)
     }
     catch (e: JsonParseException) {
       throw BitbucketJsonException("Can't parse GitHub response", e)
@@ -59,21 +105,164 @@ object BitbucketApiContentHelper {
   @JvmStatic
   @Throws(BitbucketJsonException::class)
   fun <T> readJsonObject(reader: Reader, clazz: Class<T>, vararg parameters: Class<*>, gqlNaming: Boolean = false): T {
-    return readJson(reader, jackson.typeFactory.constructParametricType(clazz, *parameters), gqlNaming)
+    return readJson(reader, ReaderKey(clazz, parameters.toList(), gqlNaming))
+  }
+
+  /**
+   * Binds an already parsed tree, so the tree is not serialized and parsed again
+   */
+  @JvmStatic
+  @Throws(BitbucketJsonException::class)
+  fun <T> readJsonObject(tree: JsonNode, clazz: Class<T>, vararg parameters: Class<*>, gqlNaming: Boolean = false): T {
+    try {
+      return getReader(ReaderKey(clazz, parameters.toList(), gqlNaming)).readValue(tree)
+    }
+    catch (e: JsonProcessingException) {
+      throw BitbucketJsonException("Can't parse GitHub response", e)
+    }
   }
 
   @JvmStatic
   @Throws(BitbucketJsonException::class)
   fun <T> readJsonList(reader: Reader, parameterClass: Class<T>): List<T> {
-    return readJson(reader, jackson.typeFactory.constructCollectionType(List::class.java, parameterClass))
+    return readJson(reader, ReaderKey(List::class.java, listOf(parameterClass), false))
+  }
+
+  /**
+   * Reads JSON array passing every item to [itemConsumer] as soon as it is parsed, without collecting the whole list
+   */
+  @JvmStatic
+  @Throws(BitbucketJsonException::class)
+  fun <T> readJsonList(reader: Reader, parameterClass: Class<T>, itemConsumer: (T) -> Unit) {
+    try {
+      val itemReader = getReader(ReaderKey(parameterClass, emptyList(), false))
+      val parser = jackson.factory.createParser(reader)
+      if (parser.nextToken() != JsonToken.START_ARRAY) throw BitbucketJsonException("Can't parse GitHub response - array expected")
+      while (true) {
+        val token = parser.nextToken() ?: throw BitbucketJsonException("Can't parse GitHub response - unexpected end of array")
+        if (token == JsonToken.END_ARRAY) break
+        itemConsumer(itemReader.readValue(parser))
+      }
+    }
+    catch (e: JsonProcessingException) {
+      throw BitbucketJsonException("Can't parse GitHub response", e)
+    }
+  }
+
+  /**
+   * Reads page object with the items in "values" and the pagination fields next to them
+   *
+   * When [itemConsumer] is passed, items are passed to it as soon as they are parsed and items of the returned page are empty.
+   */
+  @JvmStatic
+  @Throws(BitbucketJsonException::class)
+  fun <T> readJsonBodyPage(reader: Reader, itemClass: Class<T>, itemConsumer: ((T) -> Unit)? = null): BitbucketResponsePage<T> {
+    try {
+      val itemReader = getReader(ReaderKey(itemClass, emptyList(), false))
+      val parser = jackson.factory.createParser(reader)
+      if (parser.nextToken() != JsonToken.START_OBJECT) throw BitbucketJsonException("Can't parse GitHub response - object expected")
+
+      val items = mutableListOf<T>()
+      var pageSize: Int? = null
+      var totalSize: Int? = null
+      var nextLink: String? = null
+      var prevLink: String? = null
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        val field = parser.currentName
+        if (parser.nextToken() == JsonToken.VALUE_NULL) continue
+        when (field) {
+          "values" -> {
+            if (parser.currentToken != JsonToken.START_ARRAY) throw BitbucketJsonException("Can't parse GitHub response - array expected")
+            while (true) {
+              val token = parser.nextToken() ?: throw BitbucketJsonException("Can't parse GitHub response - unexpected end of array")
+              if (token == JsonToken.END_ARRAY) break
+              val item = itemReader.readValue<T>(parser)
+              if (itemConsumer != null) itemConsumer(item) else items.add(item)
+            }
+          }
+          "pagelen" -> pageSize = parser.valueAsInt
+          "size" -> totalSize = parser.valueAsInt
+          "next" -> nextLink = parser.valueAsString
+          "previous" -> prevLink = parser.valueAsString
+          else -> parser.skipChildren()
+        }
+      }
+      return BitbucketResponsePage.fromBody(items, pageSize, totalSize, nextLink, prevLink)
+    }
+    catch (e: JsonProcessingException) {
+      throw BitbucketJsonException("Can't parse GitHub response", e)
+    }
+  }
+
+  /**
+   * Reads GraphQL response binding only the value found by [pathFromData] in response data
+   *
+   * Other fields are skipped by the parser without building a tree. Value is null if any of the path elements is absent or null.
+   */
+  @JvmStatic
+  @Throws(BitbucketJsonException::class)
+  fun <T> readGQLResponse(reader: Reader, clazz: Class<T>, pathFromData: Array<out String>): BBGQLResponse<T> =
+    readGQLResponse(gqlJackson.factory.createParser(reader), clazz, pathFromData)
+
+  /**
+   * Same as [readGQLResponse] for an already parsed response, the tree is traversed without serializing it back to text
+   */
+  @JvmStatic
+  @Throws(BitbucketJsonException::class)
+  fun <T> readGQLResponse(tree: JsonNode, clazz: Class<T>, pathFromData: Array<out String>): BBGQLResponse<T> =
+    readGQLResponse(gqlJackson.treeAsTokens(tree), clazz, pathFromData)
+
+  private fun <T> readGQLResponse(parser: JsonParser, clazz: Class<T>, pathFromData: Array<out String>): BBGQLResponse<T> {
+    try {
+      if (parser.nextToken() != JsonToken.START_OBJECT) throw BitbucketJsonException("Can't parse GitHub response - object expected")
+
+      var data: T? = null
+      var errors: List<BBGQLSyntaxError>? = null
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        val field = parser.currentName
+        parser.nextToken()
+        when (field) {
+          "data" -> data = readAtPath(parser, clazz, pathFromData, 0)
+          "errors" -> if (parser.currentToken != JsonToken.VALUE_NULL) {
+            errors = getReader(ReaderKey(List::class.java, listOf(BBGQLSyntaxError::class.java), true)).readValue(parser)
+          }
+          else -> parser.skipChildren()
+        }
+      }
+      return BBGQLResponse(data, errors)
+    }
+    catch (e: JsonProcessingException) {
+      throw BitbucketJsonException("Can't parse GitHub response", e)
+    }
+  }
+
+  /**
+   * Parser should be positioned at the value containing the rest of the path, after the call it's positioned at the end of that value
+   */
+  private fun <T> readAtPath(parser: JsonParser, clazz: Class<T>, path: Array<out String>, index: Int): T? {
+    if (parser.currentToken == JsonToken.VALUE_NULL) return null
+    if (index == path.size) return getReader(ReaderKey(clazz, emptyList(), true)).readValue(parser)
+    if (parser.currentToken != JsonToken.START_OBJECT) {
+      parser.skipChildren()
+      return null
+    }
+
+    var result: T? = null
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      val field = parser.currentName
+      parser.nextToken()
+      if (field == path[index]) result = readAtPath(parser, clazz, path, index + 1)
+      else parser.skipChildren()
+    }
+    return result
   }
 
   @Throws(BitbucketJsonException::class)
-  private fun <T> readJson(reader: Reader, type: JavaType, gqlNaming: Boolean = false): T {
+  private fun <T> readJson(reader: Reader, key: ReaderKey): T {
     try {
       @Suppress("UNCHECKED_CAST")
-      if (type.isTypeOrSubTypeOf(Unit::class.java) || type.isTypeOrSubTypeOf(Void::class.java)) return Unit as T
-      return getObjectMapper(gqlNaming).readValue(reader, type)
+      if (Unit::class.java.isAssignableFrom(key.rawClass) || Void::class.java.isAssignableFrom(key.rawClass)) return Unit as T
+      return getReader(key).readValue(reader)
     }
     catch (e: JsonProcessingException) {
       throw BitbucketJsonException("Can't parse GitHub response", e)
@@ -84,15 +273,53 @@ object BitbucketApiContentHelper {
   @Throws(BitbucketJsonException::class)
   fun toJson(content: Any, gqlNaming: Boolean = false): String {
     try {
-      return getObjectMapper(gqlNaming).writeValueAsString(content)
+      return getWriter(content, gqlNaming).writeValueAsString(content)
     }
     catch (e: JsonProcessingException) {
       throw BitbucketJsonException("Can't serialize GitHub request body", e)
     }
   }
 
+  /**
+   * Serializes straight to UTF-8 bytes without building an intermediate string
+   */
+  @JvmStatic
+  @Throws(BitbucketJsonException::class)
+  fun toJsonBytes(content: Any, gqlNaming: Boolean = false): ByteArray {
+    try {
+      return getWriter(content, gqlNaming).writeValueAsBytes(content)
+    }
+    catch (e: JsonProcessingException) {
+      throw BitbucketJsonException("Can't serialize GitHub request body", e)
+    }
+  }
+
+  /**
+   * Names of the JSON properties [clazz] is read from mapped to their types, collections and arrays are unwrapped to the element type
+   */
+  internal fun getJsonProperties(clazz: Class<*>): Map<String, Class<*>> {
+    val description = jackson.deserializationConfig.introspect<BeanDescription>(jackson.constructType(clazz))
+    return description.findProperties().associate { property ->
+      var type = property.primaryType
+      while (type.isContainerType && !type.isMapLikeType) type = type.contentType
+      property.name to type.rawClass
+    }
+  }
+
+  private fun getWriter(content: Any, gqlNaming: Boolean): ObjectWriter =
+    writers.computeIfAbsent(content.javaClass to gqlNaming) { getObjectMapper(gqlNaming).writerFor(it.first) }
+
   private fun getObjectMapper(gqlNaming: Boolean = false): ObjectMapper = if (!gqlNaming) jackson else gqlJackson
 
+  private fun getReader(key: ReaderKey): ObjectReader = readers.computeIfAbsent(key) {
+    val mapper = getObjectMapper(it.gqlNaming)
+    val type = if (it.parameters.isEmpty()) mapper.typeFactory.constructType(it.rawClass)
+    else mapper.typeFactory.constructParametricType(it.rawClass, *it.parameters.toTypedArray())
+    mapper.readerFor(type)
+  }
+
+  private data class ReaderKey(val rawClass: Class<*>, val parameters: List<Class<*>>, val gqlNaming: Boolean)
+
   @JvmStatic
   @Throws(IOException::class)
   fun loadImage(stream: InputStream): Image {
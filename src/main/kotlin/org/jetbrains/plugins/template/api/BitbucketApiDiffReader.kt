@@ -0,0 +1,79 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api
+
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.util.io.FileUtil
+import java.io.*
+import java.nio.CharBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+
+/**
+ * Reads diff text without keeping large diffs on the heap
+ *
+ * Diffs up to [IN_MEMORY_LIMIT] characters are read to a string. Larger ones are decoded to a temporary file
+ * and exposed as a memory-mapped [CharSequence], so the text stays off-heap and is paged in by the OS when it is read.
+ * Returned sequence is immutable and can be shared between threads.
+ */
+internal object BitbucketApiDiffReader {
+  private val LOG = logger<BitbucketApiDiffReader>()
+
+  private const val IN_MEMORY_LIMIT = 1024 * 1024
+  private const val BUFFER_SIZE = 8192
+
+  @Throws(IOException::class)
+  fun read(stream: InputStream): CharSequence {
+    val reader = InputStreamReader(stream, Charsets.UTF_8)
+    val builder = StringBuilder()
+    val buffer = CharArray(BUFFER_SIZE)
+    while (true) {
+      val read = reader.read(buffer)
+      if (read < 0) return builder.toString()
+      builder.append(buffer, 0, read)
+      if (builder.length > IN_MEMORY_LIMIT) return readToMappedFile(builder, reader, buffer)
+    }
+  }
+
+  private fun readToMappedFile(head: CharSequence, reader: Reader, buffer: CharArray): CharSequence {
+    val file = FileUtil.createTempFile("bitbucket-diff", ".tmp", true)
+    try {
+      // fixed-width encoding, so the file can be mapped as a char buffer directly
+      OutputStreamWriter(BufferedOutputStream(FileOutputStream(file)), Charsets.UTF_16BE).use { writer ->
+        writer.append(head)
+        while (true) {
+          val read = reader.read(buffer)
+          if (read < 0) break
+          writer.write(buffer, 0, read)
+        }
+      }
+      val chars = FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asCharBuffer()
+      }
+      LOG.debug("Diff of ${chars.length} chars is mapped from ${file.path}")
+      return MappedCharSequence(chars)
+    }
+    finally {
+      // mapping stays valid after the file is deleted, on Windows the file is only deleted on exit
+      if (!file.delete()) file.deleteOnExit()
+    }
+  }
+
+  /**
+   * Only absolute reads are used, so the buffer position never changes and the sequence can be read concurrently
+   */
+  private class MappedCharSequence(private val buffer: CharBuffer) : CharSequence {
+    override val length: Int
+      get() = buffer.limit()
+
+    override fun get(index: Int): Char = buffer.get(index)
+
+    override fun subSequence(startIndex: Int, endIndex: Int): CharSequence {
+      val slice = buffer.duplicate()
+      slice.limit(endIndex)
+      slice.position(startIndex)
+      return MappedCharSequence(slice.slice())
+    }
+
+    override fun toString(): String = buffer.duplicate().toString()
+  }
+}
@@ -20,6 +20,7 @@ import java.io.IOException
  */
 sealed class BitbucketApiRequest<out T>(val url: String) {
   var operationName: String? = null
+  var priority = Priority.USER
   abstract val acceptMimeType: String?
 
   open val tokenHeaderType = BitbucketApiRequestExecutor.TokenHeaderType.TOKEN
@@ -28,6 +29,16 @@ sealed class BitbucketApiRequest<out T>(val url: String) {
   val additionalHeaders: Map<String, String>
     get() = headers
 
+  /**
+   * Duration of the last exchange of this request in milliseconds, -1 if the request was not sent, e.g. its result was shared
+   *
+   * Measured by the executor from the connection start to the end of the result extraction,
+   * so the time spent waiting for the rate limit or for the batch to be sent is not included.
+   */
+  @Volatile
+  var exchangeTimeMs = -1L
+    internal set
+
   @Throws(IOException::class)
   abstract fun extractResult(response: BitbucketApiResponse): T
 
@@ -36,8 +47,40 @@ sealed class BitbucketApiRequest<out T>(val url: String) {
     return this
   }
 
+  fun withPriority(priority: Priority): BitbucketApiRequest<T> {
+    this.priority = priority
+    return this
+  }
+
+  /**
+   * Defines the order in which requests are admitted when rate limit is running low
+   */
+  enum class Priority {
+    /**
+     * Results are awaited by the user
+     */
+    USER,
+
+    /**
+     * Polling, prefetching and other requests which can wait
+     */
+    BACKGROUND
+  }
+
   abstract class Get<T> @JvmOverloads constructor(url: String,
                                                   override val acceptMimeType: String? = null) : BitbucketApiRequest<T>(url) {
+    /**
+     * Response body can be cached and revalidated with a conditional request
+     */
+    open val isCacheable: Boolean = false
+
+    /**
+     * Identifies the type of the result, so that concurrent requests with the same url can share the result
+     * Null by default, requests which parse the response to a value independent of the caller enable sharing explicitly
+     */
+    internal open val resultType: Any?
+      get() = null
+
     abstract class Optional<T> @JvmOverloads constructor(url: String,
                                                          acceptMimeType: String? = null) : Get<T?>(url, acceptMimeType) {
       companion object {
@@ -48,6 +91,11 @@ sealed class BitbucketApiRequest<out T>(val url: String) {
       open class Json<T>(url: String, private val clazz: Class<T>, acceptMimeType: String? = BitbucketApiContentHelper.V3_JSON_MIME_TYPE)
         : Optional<T>(url, acceptMimeType) {
 
+        override val isCacheable = true
+
+        override val resultType: Any?
+          get() = javaClass to clazz
+
         override fun extractResult(response: BitbucketApiResponse): T = parseJsonObject(response, clazz)
       }
     }
@@ -59,6 +107,9 @@ sealed class BitbucketApiRequest<out T>(val url: String) {
       inline fun <reified T> jsonPage(url: String, acceptMimeType: String? = null): Get<BitbucketResponsePage<T>> =
         JsonPage(url, T::class.java, acceptMimeType)
 
+      inline fun <reified T> jsonBodyPage(url: String, acceptMimeType: String? = null): Get<BitbucketResponsePage<T>> =
+        JsonBodyPage(url, T::class.java, acceptMimeType)
+
       inline fun <reified T> jsonSearchPage(url: String, acceptMimeType: String? = null): Get<BitbucketResponsePage<T>> =
         JsonSearchPage(url, T::class.java, acceptMimeType)
     }
@@ -66,22 +117,71 @@ sealed class BitbucketApiRequest<out T>(val url: String) {
     open class Json<T>(url: String, private val clazz: Class<T>, acceptMimeType: String? = BitbucketApiContentHelper.V3_JSON_MIME_TYPE)
       : Get<T>(url, acceptMimeType) {
 
+      override val isCacheable = true
+
+      override val resultType: Any?
+        get() = javaClass to clazz
+
       override fun extractResult(response: BitbucketApiResponse): T = parseJsonObject(response, clazz)
     }
 
     open class JsonList<T>(url: String, private val clazz: Class<T>, acceptMimeType: String? = BitbucketApiContentHelper.V3_JSON_MIME_TYPE)
       : Get<List<T>>(url, acceptMimeType) {
 
+      override val isCacheable = true
+
+      override val resultType: Any?
+        get() = javaClass to clazz
+
       override fun extractResult(response: BitbucketApiResponse): List<T> = parseJsonList(response, clazz)
     }
 
-    open class JsonPage<T>(url: String, private val clazz: Class<T>, acceptMimeType: String? = BitbucketApiContentHelper.V3_JSON_MIME_TYPE)
+    open class JsonPage<T>(url: String, protected val clazz: Class<T>, acceptMimeType: String? = BitbucketApiContentHelper.V3_JSON_MIME_TYPE)
       : Get<BitbucketResponsePage<T>>(url, acceptMimeType) {
 
+      override val isCacheable = true
+
+      override val resultType: Any?
+        get() = javaClass to clazz
+
       override fun extractResult(response: BitbucketApiResponse): BitbucketResponsePage<T> {
         return BitbucketResponsePage.parseFromHeader(parseJsonList(response, clazz),
                                                   response.findHeader(BitbucketResponsePage.HEADER_NAME))
       }
+
+      /**
+       * Creates the same request which passes page items to [itemConsumer] one by one as soon as they are parsed.
+       * Items of the resulting page are empty.
+       */
+      fun streaming(itemConsumer: (T) -> Unit): Get<BitbucketResponsePage<T>> {
+        val request = object : Get<BitbucketResponsePage<T>>(url, acceptMimeType) {
+          override val isCacheable = true
+
+          override fun extractResult(response: BitbucketApiResponse) = extractStreaming(response, itemConsumer)
+        }
+        request.headers.putAll(headers)
+        request.operationName = operationName
+        request.priority = priority
+        return request
+      }
+
+      protected open fun extractStreaming(response: BitbucketApiResponse, itemConsumer: (T) -> Unit): BitbucketResponsePage<T> {
+        response.readBody(ThrowableConvertor { BitbucketApiContentHelper.readJsonList(it, clazz, itemConsumer) })
+        return BitbucketResponsePage.parseFromHeader(emptyList(), response.findHeader(BitbucketResponsePage.HEADER_NAME))
+      }
+    }
+
+    /**
+     * Page with the items in "values" and the pagination in the response body, as Bitbucket sends it
+     */
+    open class JsonBodyPage<T>(url: String, clazz: Class<T>, acceptMimeType: String? = BitbucketApiContentHelper.JSON_MIME_TYPE)
+      : JsonPage<T>(url, clazz, acceptMimeType) {
+
+      override fun extractResult(response: BitbucketApiResponse): BitbucketResponsePage<T> =
+        response.readBody(ThrowableConvertor { BitbucketApiContentHelper.readJsonBodyPage(it, clazz) })
+
+      override fun extractStreaming(response: BitbucketApiResponse, itemConsumer: (T) -> Unit): BitbucketResponsePage<T> =
+        response.readBody(ThrowableConvertor { BitbucketApiContentHelper.readJsonBodyPage(it, clazz, itemConsumer) })
     }
 
     open class JsonSearchPage<T>(url: String,
@@ -89,6 +189,11 @@ sealed class BitbucketApiRequest<out T>(val url: String) {
                                  acceptMimeType: String? = BitbucketApiContentHelper.V3_JSON_MIME_TYPE)
       : Get<BitbucketResponsePage<T>>(url, acceptMimeType) {
 
+      override val isCacheable = true
+
+      override val resultType: Any?
+        get() = javaClass to clazz
+
       override fun extractResult(response: BitbucketApiResponse): BitbucketResponsePage<T> {
         return BitbucketResponsePage.parseFromHeader(parseJsonSearchPage(response, clazz).items,
                                                   response.findHeader(BitbucketResponsePage.HEADER_NAME))
@@ -100,8 +205,21 @@ sealed class BitbucketApiRequest<out T>(val url: String) {
                                                    override val acceptMimeType: String? = null) : BitbucketApiRequest<T>(url)
 
   abstract class WithBody<out T>(url: String) : BitbucketApiRequest<T>(url) {
-    abstract val body: String?
     abstract val bodyMimeType: String
+
+    /**
+     * Body is encoded once per request instance, so it is not serialized again for logging or when the request is retried
+     */
+    val bodyBytes: ByteArray? by lazy { encodeBody() }
+
+    /**
+     * Decoded [bodyBytes], should only be used for logging
+     */
+    val body: String?
+      get() = bodyBytes?.toString(Charsets.UTF_8)
+
+    @Throws(IOException::class)
+    protected abstract fun encodeBody(): ByteArray?
   }
 
   abstract class Post<out T> @JvmOverloads constructor(override val bodyMimeType: String,
@@ -116,27 +234,29 @@ sealed class BitbucketApiRequest<out T>(val url: String) {
                        acceptMimeType: String? = BitbucketApiContentHelper.V3_JSON_MIME_TYPE)
       : Post<T>(BitbucketApiContentHelper.JSON_MIME_TYPE, url, acceptMimeType) {
 
-      override val body: String
-        get() = BitbucketApiContentHelper.toJson(bodyObject)
+      override fun encodeBody(): ByteArray = BitbucketApiContentHelper.toJsonBytes(bodyObject)
 
       override fun extractResult(response: BitbucketApiResponse): T = parseJsonObject(response, clazz)
     }
 
     abstract class GQLQuery<out T>(url: String,
-                                   private val queryName: String,
-                                   private val variablesObject: Any)
+                                   internal val queryName: String,
+                                   internal val variablesObject: Any)
       : Post<T>(BitbucketApiContentHelper.JSON_MIME_TYPE, url) {
 
       override val tokenHeaderType = BitbucketApiRequestExecutor.TokenHeaderType.BEARER
 
-      override val body: String
-        get() {
-          val query = BBGQLQueryLoader.loadQuery(queryName)
-          val request = BBGQLQueryRequest(query, variablesObject)
-          return BitbucketApiContentHelper.toJson(request, true)
-        }
+      override fun encodeBody(): ByteArray {
+        val query = BBGQLQueryLoader.loadQuery(queryName)
+        val request = BBGQLQueryRequest(query, variablesObject)
+        return BitbucketApiContentHelper.toJsonBytes(request, true)
+      }
 
       protected fun throwException(errors: List<BBGQLSyntaxError>): Nothing {
+        errors.find { BBGQLPersistedQueryRequest.isPersistedQueryError(it) }?.let {
+          throw BBGQLPersistedQueryNotFoundException(it.message, it.message == BBGQLPersistedQueryRequest.NOT_SUPPORTED_ERROR)
+        }
+
         if (errors.any { it.type.equals("INSUFFICIENT_SCOPES", true) })
           throw BitbucketAuthenticationException("Access token has not been granted the required scopes.")
 
@@ -148,8 +268,15 @@ sealed class BitbucketApiRequest<out T>(val url: String) {
                           variablesObject: Any,
                           private val clazz: Class<T>)
         : GQLQuery<T>(url, requestFilePath, variablesObject) {
-        override fun extractResult(response: BitbucketApiResponse): T {
-          val result: BBGQLResponse<out T> = parseGQLResponse(response, clazz)
+        override fun extractResult(response: BitbucketApiResponse): T = getData(parseGQLResponse(response, clazz))
+
+        override fun extractResult(responseTree: JsonNode): T {
+          @Suppress("UNCHECKED_CAST")
+          return getData(BitbucketApiContentHelper.readJsonObject(responseTree, BBGQLResponse::class.java, clazz,
+                                                                  gqlNaming = true) as BBGQLResponse<T>)
+        }
+
+        private fun getData(result: BBGQLResponse<out T>): T {
           val data = result.data
           if (data != null) return data
 
@@ -170,6 +297,11 @@ sealed class BitbucketApiRequest<out T>(val url: String) {
           return parseResponse(response, clazz, pathFromData)
                  ?: throw BitbucketJsonException("Non-nullable entity is null or entity path is invalid")
         }
+
+        override fun extractResult(responseTree: JsonNode): T {
+          return parseResponse(responseTree, clazz, pathFromData)
+                 ?: throw BitbucketJsonException("Non-nullable entity is null or entity path is invalid")
+        }
       }
 
       class OptionalTraversedParsed<T>(url: String,
@@ -181,20 +313,32 @@ sealed class BitbucketApiRequest<out T>(val url: String) {
         override fun extractResult(response: BitbucketApiResponse): T? {
           return parseResponse(response, clazz, pathFromData)
         }
+
+        override fun extractResult(responseTree: JsonNode): T? {
+          return parseResponse(responseTree, clazz, pathFromData)
+        }
       }
 
+      /**
+       * Binds the result from an already parsed response, i.e. the part of a batched response related to this query
+       */
+      @Throws(IOException::class)
+      internal abstract fun extractResult(responseTree: JsonNode): T
+
       internal fun <T> parseResponse(response: BitbucketApiResponse,
                                      clazz: Class<T>,
-                                     pathFromData: Array<out String>): T? {
-        val result: BBGQLResponse<out JsonNode> = parseGQLResponse(response, JsonNode::class.java)
+                                     pathFromData: Array<out String>): T? =
+        getDataAtPath(response.readBody(ThrowableConvertor { BitbucketApiContentHelper.readGQLResponse(it, clazz, pathFromData) }))
+
+      internal fun <T> parseResponse(responseTree: JsonNode,
+                                     clazz: Class<T>,
+                                     pathFromData: Array<out String>): T? =
+        getDataAtPath(BitbucketApiContentHelper.readGQLResponse(responseTree, clazz, pathFromData))
+
+      private fun <T> getDataAtPath(result: BBGQLResponse<T>): T? {
         val data = result.data
-        if (data != null && !data.isNull) {
-          var node: JsonNode = data
-          for (path in pathFromData) {
-            node = node[path] ?: break
-          }
-          if (!node.isNull) return BitbucketApiContentHelper.fromJson(node.toString(), clazz, true)
-        }
+        if (data != null) return data
+
         val errors = result.errors
         if (errors == null) return null
         else throwException(errors)
@@ -217,8 +361,7 @@ sealed class BitbucketApiRequest<out T>(val url: String) {
         if (bodyObject == null) headers["Content-Length"] = "0"
       }
 
-      override val body: String?
-        get() = bodyObject?.let { BitbucketApiContentHelper.toJson(it) }
+      override fun encodeBody(): ByteArray? = bodyObject?.let { BitbucketApiContentHelper.toJsonBytes(it) }
 
       override fun extractResult(response: BitbucketApiResponse): T = parseJsonObject(response, clazz)
     }
@@ -229,8 +372,7 @@ sealed class BitbucketApiRequest<out T>(val url: String) {
         if (bodyObject == null) headers["Content-Length"] = "0"
       }
 
-      override val body: String?
-        get() = bodyObject?.let { BitbucketApiContentHelper.toJson(it) }
+      override fun encodeBody(): ByteArray? = bodyObject?.let { BitbucketApiContentHelper.toJsonBytes(it) }
 
       override fun extractResult(response: BitbucketApiResponse): List<T> = parseJsonList(response, clazz)
     }
@@ -262,8 +404,7 @@ sealed class BitbucketApiRequest<out T>(val url: String) {
         if (bodyObject == null) headers["Content-Length"] = "0"
       }
 
-      override val body: String?
-        get() = bodyObject?.let { BitbucketApiContentHelper.toJson(it) }
+      override fun encodeBody(): ByteArray? = bodyObject?.let { BitbucketApiContentHelper.toJsonBytes(it) }
 
       override fun extractResult(response: BitbucketApiResponse): T = parseJsonObject(response, clazz)
     }
@@ -1,33 +1,43 @@
 // Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
 package org.jetbrains.plugins.template.api
 
+import com.intellij.concurrency.SensitiveProgressWrapper
 import com.intellij.openapi.Disposable
 import com.intellij.openapi.components.service
 import com.intellij.openapi.diagnostic.logger
 import com.intellij.openapi.progress.EmptyProgressIndicator
 import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.util.Computable
 import com.intellij.util.EventDispatcher
 import com.intellij.util.ThrowableConvertor
-import com.intellij.util.io.HttpRequests
+import com.intellij.util.concurrency.AppExecutorUtil
 import com.intellij.util.io.HttpSecurityUtil
-import com.intellij.util.io.RequestBuilder
 import org.jetbrains.annotations.CalledInAny
 import org.jetbrains.annotations.CalledInBackground
 import org.jetbrains.annotations.TestOnly
 import org.jetbrains.plugins.template.api.data.BitbucketErrorMessage
 import org.jetbrains.plugins.template.exceptions.*
 import org.jetbrains.plugins.template.util.BitbucketSettings
+import org.jetbrains.plugins.template.util.NonReusableEmptyProgressIndicator
 
 
 import java.io.IOException
 import java.io.InputStream
 import java.io.InputStreamReader
 import java.io.Reader
-import java.net.HttpURLConnection
+import java.net.*
+import java.time.ZonedDateTime
+import java.time.format.DateTimeFormatter
+import java.time.format.DateTimeParseException
 import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
 import java.util.function.Supplier
-import java.util.zip.GZIPInputStream
+import kotlin.math.max
+import kotlin.math.min
 
 /**
  * Executes API requests taking care of authentication, headers, proxies, timeouts, etc.
@@ -45,6 +55,40 @@ sealed class BitbucketApiRequestExecutor {
   @Throws(IOException::class, ProcessCanceledException::class)
   fun <T> execute(request: BitbucketApiRequest<T>): T = execute(EmptyProgressIndicator(), request)
 
+  /**
+   * Executes the request on a dedicated bounded pool, so callers can compose results instead of parking their own threads
+   *
+   * Transport is blocking, so a thread of the pool is still occupied while the request is in flight.
+   * The pool is bounded, so at most [MAX_ASYNC_REQUESTS] requests are in flight at once and the rest wait in its queue
+   * without occupying shared IO threads.
+   * Cancelling the returned future or [indicator] aborts the request. Stages derived from the returned future
+   * do not propagate cancellation back, so the future itself or the indicator should be cancelled.
+   */
+  @CalledInAny
+  fun <T> executeAsync(indicator: ProgressIndicator, request: BitbucketApiRequest<T>): CompletableFuture<T> {
+    val requestIndicator = SensitiveProgressWrapper(indicator)
+    val future = object : CompletableFuture<T>() {
+      override fun cancel(mayInterruptIfRunning: Boolean): Boolean {
+        requestIndicator.cancel()
+        return super.cancel(mayInterruptIfRunning)
+      }
+    }
+    asyncExecutor.execute {
+      if (future.isDone) return@execute
+      try {
+        future.complete(ProgressManager.getInstance().runProcess(Computable { execute(requestIndicator, request) }, requestIndicator))
+      }
+      catch (e: Throwable) {
+        future.completeExceptionally(e)
+      }
+    }
+    return future
+  }
+
+  @CalledInAny
+  fun <T> executeAsync(request: BitbucketApiRequest<T>): CompletableFuture<T> =
+    executeAsync(NonReusableEmptyProgressIndicator(), request)
+
   fun addListener(listener: AuthDataChangeListener, disposable: Disposable) =
     authDataChangedEventDispatcher.addListener(listener, disposable)
 
@@ -65,16 +109,16 @@ sealed class BitbucketApiRequestExecutor {
         authDataChangedEventDispatcher.multicaster.authDataChanged()
       }
 
+    override val responseCacheScope: String
+      get() = token
+
     @Throws(IOException::class, ProcessCanceledException::class)
     override fun <T> execute(indicator: ProgressIndicator, request: BitbucketApiRequest<T>): T {
       indicator.checkCanceled()
-      return createRequestBuilder(request)
-        .tuner { connection ->
-          request.additionalHeaders.forEach(connection::addRequestProperty)
-          connection.addRequestProperty(HttpSecurityUtil.AUTHORIZATION_HEADER_NAME, "${request.tokenHeaderType} $token")
-        }
-        .useProxy(useProxy)
-        .execute(request, indicator)
+      return execute(request, indicator, useProxy) { connection ->
+        request.additionalHeaders.forEach(connection::addRequestProperty)
+        connection.addRequestProperty(HttpSecurityUtil.AUTHORIZATION_HEADER_NAME, "${request.tokenHeaderType} $token")
+      }
     }
   }
 
@@ -84,6 +128,9 @@ sealed class BitbucketApiRequestExecutor {
                                            private val twoFactorCodeSupplier: Supplier<String?>) : Base(bitbucketSettings) {
     private var twoFactorCode: String? = null
 
+    override val responseCacheScope: String
+      get() = login
+
     @Throws(IOException::class, ProcessCanceledException::class)
     override fun <T> execute(indicator: ProgressIndicator, request: BitbucketApiRequest<T>): T {
       indicator.checkCanceled()
@@ -94,13 +141,11 @@ sealed class BitbucketApiRequestExecutor {
     private fun <T> executeWithBasicHeader(indicator: ProgressIndicator, request: BitbucketApiRequest<T>, header: String): T {
       indicator.checkCanceled()
       return try {
-        createRequestBuilder(request)
-          .tuner { connection ->
-            request.additionalHeaders.forEach(connection::addRequestProperty)
-            connection.addRequestProperty(HttpSecurityUtil.AUTHORIZATION_HEADER_NAME, "Basic $header")
-            twoFactorCode?.let { connection.addRequestProperty(OTP_HEADER_NAME, it) }
-          }
-          .execute(request, indicator)
+        execute(request, indicator) { connection ->
+          request.additionalHeaders.forEach(connection::addRequestProperty)
+          connection.addRequestProperty(HttpSecurityUtil.AUTHORIZATION_HEADER_NAME, "Basic $header")
+          twoFactorCode?.let { connection.addRequestProperty(OTP_HEADER_NAME, it) }
+        }
       }
       catch (e: BitbucketTwoFactorAuthenticationException) {
         twoFactorCode = twoFactorCodeSupplier.get() ?: throw e
@@ -110,25 +155,144 @@ sealed class BitbucketApiRequestExecutor {
   }
 
   abstract class Base(private val bitbucketSettings: BitbucketSettings) : BitbucketApiRequestExecutor() {
-    protected fun <T> RequestBuilder.execute(request: BitbucketApiRequest<T>, indicator: ProgressIndicator): T {
+    private val responseCache = BitbucketApiResponseCache.getInstance()
+
+    /**
+     * Identifies the account responses are cached, shared and rate limited for
+     */
+    protected abstract val responseCacheScope: String
+
+    protected fun <T> execute(request: BitbucketApiRequest<T>,
+                              indicator: ProgressIndicator,
+                              useProxy: Boolean = true,
+                              connectionTuner: (HttpURLConnection) -> Unit): T {
       indicator.checkCanceled()
+      if (request is BitbucketApiRequest.Post.GQLQuery<*> && bitbucketSettings.isUsePersistedGQLQueries
+          && BBGQLPersistedQueryRequest.isSupported(request.url)) {
+        @Suppress("UNCHECKED_CAST")
+        return executePersisted(request as BitbucketApiRequest.Post.GQLQuery<T>, indicator, useProxy, connectionTuner)
+      }
+
+      val resultType = (request as? BitbucketApiRequest.Get)?.resultType
+                       ?: return executeWithRetries(request, indicator, useProxy, connectionTuner)
+
+      val key = SingleFlightKey(responseCacheScope, request.url, request.acceptMimeType, request.additionalHeaders.toMap(), resultType,
+                                request.priority)
+      return singleFlight.execute(key, indicator) { executeWithRetries(request, it, useProxy, connectionTuner) }
+    }
+
+    /**
+     * Only the hash of the query is sent at first, full text is sent when the server doesn't know the hash yet
+     */
+    private fun <T> executePersisted(query: BitbucketApiRequest.Post.GQLQuery<T>,
+                                     indicator: ProgressIndicator,
+                                     useProxy: Boolean,
+                                     connectionTuner: (HttpURLConnection) -> Unit): T {
+      fun executeWrapped(request: BBGQLPersistedQueryRequest<T>): T =
+        executeWithRetries(request, indicator, useProxy, connectionTuner).also { query.exchangeTimeMs = request.exchangeTimeMs }
+
+      return try {
+        executeWrapped(BBGQLPersistedQueryRequest(query, true))
+      }
+      catch (e: BBGQLPersistedQueryNotFoundException) {
+        LOG.debug("Request: ${query.url} : ${e.message}, sending full query")
+        if (e.isNotSupported) {
+          BBGQLPersistedQueryRequest.setNotSupported(query.url)
+          executeWithRetries(query, indicator, useProxy, connectionTuner)
+        }
+        else executeWrapped(BBGQLPersistedQueryRequest(query, false))
+      }
+    }
+
+    /**
+     * Transient failures of idempotent requests are retried with jittered exponential backoff or after the delay requested
+     * by the server. Request is not retried once the result extraction has started, because it could have been partially consumed.
+     */
+    private fun <T> executeWithRetries(request: BitbucketApiRequest<T>,
+                                       indicator: ProgressIndicator,
+                                       useProxy: Boolean,
+                                       connectionTuner: (HttpURLConnection) -> Unit): T {
+      val server = getServer(request.url)
+      var retries = 0
+      while (true) {
+        circuitBreaker.acquire(server)
+        val attempt = Attempt()
+        var outcomeReported = false
+        try {
+          val result = doExecute(request, indicator, useProxy, connectionTuner, attempt)
+          circuitBreaker.onSuccess(server)
+          outcomeReported = true
+          return result
+        }
+        catch (e: IOException) {
+          if (!isTransientFailure(e)) {
+            if (e is BitbucketConfusingException || e is BitbucketAuthenticationException || e is BBGQLPersistedQueryNotFoundException) {
+              circuitBreaker.onSuccess(server)
+            }
+            else circuitBreaker.onAbandoned(server)
+            outcomeReported = true
+            throw e
+          }
+          if (!isTooManyRequests(e)) circuitBreaker.onFailure(server, e) else circuitBreaker.onSuccess(server)
+          outcomeReported = true
+
+          if (!isIdempotent(request) || attempt.extractionStarted || retries >= MAX_RETRIES) throw e
+          val delay = getRetryDelay(retries, attempt.retryAfter) ?: throw e
+          retries++
+          circuitBreaker.onRetry(server)
+          LOG.debug("Request: ${request.url} : ${e.message}, retry $retries in $delay ms")
+          sleep(delay, indicator)
+        }
+        finally {
+          if (!outcomeReported) circuitBreaker.onAbandoned(server)
+        }
+      }
+    }
+
+    private fun <T> doExecute(request: BitbucketApiRequest<T>,
+                              indicator: ProgressIndicator,
+                              useProxy: Boolean,
+                              connectionTuner: (HttpURLConnection) -> Unit,
+                              attempt: Attempt): T {
+      scheduler.acquire(responseCacheScope, request.priority, indicator)
       try {
         LOG.debug("Request: ${request.url} ${request.operationName} : Connecting")
-        return connect {
-          val connection = it.connection as HttpURLConnection
+        val cacheKey = if (request is BitbucketApiRequest.Get && request.isCacheable) {
+          BitbucketApiResponseCache.getKey(responseCacheScope, request)
+        }
+        else null
+        val cachedResponse = cacheKey?.let(responseCache::find)
+        val tuner: (HttpURLConnection) -> Unit = { connection ->
+          connectionTuner(connection)
+          cachedResponse?.let { connection.setRequestProperty(BitbucketApiResponseCache.IF_NONE_MATCH_HEADER, it.eTag) }
+        }
+
+        val exchangeStart = System.currentTimeMillis()
+        return BitbucketApiTransport.create(bitbucketSettings).connect(request, indicator, useProxy, tuner) {
+          val connection = it.connection
           if (request is BitbucketApiRequest.WithBody) {
-            LOG.debug("Request: ${connection.requestMethod} ${connection.url} with body:\n${request.body} : Connected")
-            request.body?.let { body -> it.write(body) }
+            if (LOG.isDebugEnabled) LOG.debug("Request: ${connection.requestMethod} ${connection.url} with body:\n${request.body} : Connected")
+            request.bodyBytes?.let { body -> it.write(body) }
           }
           else {
             LOG.debug("Request: ${connection.requestMethod} ${connection.url} : Connected")
           }
+          scheduler.update(responseCacheScope, connection)
+          if (cachedResponse != null && connection.responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            LOG.debug("Request: ${connection.requestMethod} ${connection.url} : Not modified, using cached response")
+            attempt.extractionStarted = true
+            return@connect request.extractResult(cachedResponse.createResponse())
+          }
+          attempt.retryAfter = connection.getHeaderField(RETRY_AFTER_HEADER)?.let(::parseRetryAfter)
           checkResponseCode(connection)
           indicator.checkCanceled()
-          val result = request.extractResult(createResponse(it, indicator))
+          val response = if (cacheKey != null) responseCache.record(cacheKey, connection, it.getInputStream())
+          else createResponse(it, indicator)
+          attempt.extractionStarted = true
+          val result = request.extractResult(response)
           LOG.debug("Request: ${connection.requestMethod} ${connection.url} : Result extracted")
           result
-        }
+        }.also { request.exchangeTimeMs = System.currentTimeMillis() - exchangeStart }
       }
       catch (e: BitbucketStatusCodeException) {
         @Suppress("UNCHECKED_CAST")
@@ -144,23 +308,9 @@ sealed class BitbucketApiRequestExecutor {
       }
     }
 
-    protected fun createRequestBuilder(request: BitbucketApiRequest<*>): RequestBuilder {
-      return when (request) {
-        is BitbucketApiRequest.Get -> HttpRequests.request(request.url)
-        is BitbucketApiRequest.Post -> HttpRequests.post(request.url, request.bodyMimeType)
-        is BitbucketApiRequest.Put -> HttpRequests.put(request.url, request.bodyMimeType)
-        is BitbucketApiRequest.Patch -> HttpRequests.patch(request.url, request.bodyMimeType)
-        is BitbucketApiRequest.Head -> HttpRequests.head(request.url)
-        is BitbucketApiRequest.Delete -> {
-          if (request.body == null) HttpRequests.delete(request.url) else HttpRequests.delete(request.url, request.bodyMimeType)
-        }
-        else -> throw UnsupportedOperationException("${request.javaClass} is not supported")
-      }
-        .connectTimeout(bitbucketSettings.connectionTimeout)
-        .userAgent("Intellij IDEA Bitbucket Plugin")
-        .throwStatusCodeException(false)
-        .forceHttps(false)
-        .accept(request.acceptMimeType)
+    private class Attempt {
+      var extractionStarted = false
+      var retryAfter: Long? = null
     }
 
     @Throws(IOException::class)
@@ -199,8 +349,7 @@ sealed class BitbucketApiRequestExecutor {
 
     private fun getErrorText(connection: HttpURLConnection): String? {
       val errorStream = connection.errorStream ?: return null
-      val stream = if (connection.contentEncoding == "gzip") GZIPInputStream(errorStream) else errorStream
-      return InputStreamReader(stream, Charsets.UTF_8).use { it.readText() }
+      return InputStreamReader(BitbucketApiTransport.decode(errorStream, connection.contentEncoding), Charsets.UTF_8).use { it.readText() }
     }
 
     private fun getJsonError(connection: HttpURLConnection, errorText: String): BitbucketErrorMessage? {
@@ -213,15 +362,15 @@ sealed class BitbucketApiRequestExecutor {
       }
     }
 
-    private fun createResponse(request: HttpRequests.Request, indicator: ProgressIndicator): BitbucketApiResponse {
+    private fun createResponse(exchange: BitbucketApiTransport.Exchange, indicator: ProgressIndicator): BitbucketApiResponse {
       return object : BitbucketApiResponse {
-        override fun findHeader(headerName: String): String? = request.connection.getHeaderField(headerName)
+        override fun findHeader(headerName: String): String? = exchange.connection.getHeaderField(headerName)
 
-        override fun <T> readBody(converter: ThrowableConvertor<Reader, T, IOException>): T = request.getReader(indicator).use {
+        override fun <T> readBody(converter: ThrowableConvertor<Reader, T, IOException>): T = exchange.getReader(indicator).use {
           converter.convert(it)
         }
 
-        override fun <T> handleBody(converter: ThrowableConvertor<InputStream, T, IOException>): T = request.inputStream.use {
+        override fun <T> handleBody(converter: ThrowableConvertor<InputStream, T, IOException>): T = exchange.getInputStream().use {
           converter.convert(it)
         }
       }
@@ -250,10 +399,105 @@ sealed class BitbucketApiRequestExecutor {
     }
   }
 
+  private data class SingleFlightKey(val scope: String,
+                                     val url: String,
+                                     val acceptMimeType: String?,
+                                     val headers: Map<String, String>,
+                                     val resultType: Any,
+                                     // background request can be held back by the scheduler
+                                     val priority: BitbucketApiRequest.Priority)
+
   companion object {
     private val LOG = logger<BitbucketApiRequestExecutor>()
 
+    private const val RETRY_AFTER_HEADER = "Retry-After"
+    private const val MAX_RETRIES = 3
+    private const val RETRY_BASE_DELAY_MS = 500L
+    private const val RETRY_MAX_DELAY_MS = 8 * 1000L
+    // longer delays requested by the server are not worth waiting for
+    private const val MAX_RETRY_AFTER_MS = 30 * 1000L
+    private const val HTTP_TOO_MANY_REQUESTS = 429
+
+    private val TRANSIENT_STATUS_CODES = setOf(HttpURLConnection.HTTP_BAD_GATEWAY,
+                                               HttpURLConnection.HTTP_UNAVAILABLE,
+                                               HttpURLConnection.HTTP_GATEWAY_TIMEOUT,
+                                               HTTP_TOO_MANY_REQUESTS)
+
+    private val circuitBreaker = BitbucketApiCircuitBreaker.getInstance()
+
+    private const val MAX_ASYNC_REQUESTS = 16
+    private val asyncExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Bitbucket API Requests", MAX_ASYNC_REQUESTS)
+
+    /**
+     * Concurrent identical GET requests of the same account are executed once
+     */
+    private val singleFlight = BitbucketApiSingleFlight()
+
+    /**
+     * Requests are throttled per account according to the rate limit reported by the server
+     */
+    private val scheduler = BitbucketApiRequestScheduler()
+
     private const val OTP_HEADER_NAME = "X-Bitbucket-OTP"
+
+    private fun isIdempotent(request: BitbucketApiRequest<*>) = request is BitbucketApiRequest.Get
+                                                                || request is BitbucketApiRequest.Head
+                                                                || request is BitbucketApiRequest.Put
+                                                                || request is BitbucketApiRequest.Delete
+
+    private fun isTransientFailure(e: IOException) = when (e) {
+      is BitbucketStatusCodeException -> TRANSIENT_STATUS_CODES.contains(e.statusCode)
+      is BitbucketConfusingException, is BitbucketAuthenticationException, is BitbucketRateLimitExceededException -> false
+      is SocketTimeoutException, is ConnectException, is NoRouteToHostException -> true
+      // connection reset, broken pipe, etc.
+      is SocketException -> true
+      else -> false
+    }
+
+    private fun isTooManyRequests(e: IOException) = e is BitbucketStatusCodeException && e.statusCode == HTTP_TOO_MANY_REQUESTS
+
+    /**
+     * @return null if the server asked to wait for too long
+     */
+    private fun getRetryDelay(retry: Int, retryAfter: Long?): Long? {
+      if (retryAfter != null) return if (retryAfter > MAX_RETRY_AFTER_MS) null else retryAfter
+      val maxDelay = min(RETRY_MAX_DELAY_MS, RETRY_BASE_DELAY_MS shl retry)
+      return ThreadLocalRandom.current().nextLong(maxDelay / 2, maxDelay + 1)
+    }
+
+    /**
+     * Retry-After is either a number of seconds or an HTTP date
+     */
+    private fun parseRetryAfter(value: String): Long? {
+      value.trim().toLongOrNull()?.let { return TimeUnit.SECONDS.toMillis(max(it, 0)) }
+      return try {
+        max(ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli()
+            - System.currentTimeMillis(), 0)
+      }
+      catch (e: DateTimeParseException) {
+        null
+      }
+    }
+
+    private fun getServer(url: String): BitbucketServerPath {
+      val parsed = URL(url)
+      return BitbucketServerPath(parsed.protocol.equals("http", true), parsed.host, parsed.port.takeIf { it != -1 }, null)
+    }
+
+    private fun sleep(delay: Long, indicator: ProgressIndicator) {
+      val end = System.currentTimeMillis() + delay
+      while (true) {
+        indicator.checkCanceled()
+        val left = end - System.currentTimeMillis()
+        if (left <= 0) return
+        try {
+          Thread.sleep(min(left, 50))
+        }
+        catch (e: InterruptedException) {
+          throw ProcessCanceledException(e)
+        }
+      }
+    }
   }
 
   interface AuthDataChangeListener : EventListener {
@@ -0,0 +1,148 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api
+
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import java.net.HttpURLConnection
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Throttles requests of an account according to the rate limit reported by the server
+ *
+ * Limit state of every account is kept as a token bucket which is synchronized with rate limit headers of the responses.
+ * [BitbucketApiRequest.Priority.USER] requests are admitted while there are tokens left.
+ * [BitbucketApiRequest.Priority.BACKGROUND] requests are held back when the bucket drops below the reserve
+ * and while user requests are waiting, so background work slows down before the limit is hit.
+ * Until the server reports a limit requests are not throttled.
+ */
+internal class BitbucketApiRequestScheduler {
+  private val buckets = ConcurrentHashMap<String, Bucket>()
+
+  @Throws(ProcessCanceledException::class)
+  fun acquire(scope: String, priority: BitbucketApiRequest.Priority, indicator: ProgressIndicator) {
+    buckets.computeIfAbsent(scope) { Bucket() }.acquire(priority, indicator)
+  }
+
+  fun update(scope: String, connection: HttpURLConnection) {
+    val limit = connection.getHeaderField(LIMIT_HEADER)?.toIntOrNull()
+    val remaining = connection.getHeaderField(REMAINING_HEADER)?.toIntOrNull()
+    val resetTime = connection.getHeaderField(RESET_HEADER)?.toLongOrNull()?.let { TimeUnit.SECONDS.toMillis(it) }
+    val fillRate = connection.getHeaderField(FILL_RATE_HEADER)?.toDoubleOrNull()
+    val fillInterval = connection.getHeaderField(INTERVAL_HEADER)?.toLongOrNull()?.let { TimeUnit.SECONDS.toMillis(it) }
+    val nearLimit = connection.getHeaderField(NEAR_LIMIT_HEADER)?.toBoolean() ?: false
+    val retryAfter = if (connection.responseCode == HTTP_TOO_MANY_REQUESTS) {
+      TimeUnit.SECONDS.toMillis(connection.getHeaderField(RETRY_AFTER_HEADER)?.toLongOrNull() ?: DEFAULT_RETRY_AFTER_SECONDS)
+    }
+    else null
+
+    if (limit == null && retryAfter == null) return
+    buckets.computeIfAbsent(scope) { Bucket() }.update(limit, remaining, resetTime, fillRate, fillInterval, nearLimit, retryAfter)
+  }
+
+  private class Bucket {
+    private val lock = ReentrantLock()
+    private val changed = lock.newCondition()
+
+    private var capacity = 0
+    private var tokens = 0.0
+    private var refillPerMs = 0.0
+    private var resetTime = 0L
+    private var blockedUntil = 0L
+    private var lastRefill = System.currentTimeMillis()
+    private var waitingUserRequests = 0
+
+    fun acquire(priority: BitbucketApiRequest.Priority, indicator: ProgressIndicator) {
+      val isUser = priority == BitbucketApiRequest.Priority.USER
+      lock.withLock {
+        if (isUser) waitingUserRequests++
+        try {
+          while (true) {
+            indicator.checkCanceled()
+            refill()
+            if (canAdmit(isUser)) {
+              tokens = max(tokens - 1, 0.0)
+              return
+            }
+            try {
+              changed.await(WAIT_INTERVAL_MS, TimeUnit.MILLISECONDS)
+            }
+            catch (e: InterruptedException) {
+              throw ProcessCanceledException(e)
+            }
+          }
+        }
+        finally {
+          if (isUser) {
+            waitingUserRequests--
+            changed.signalAll()
+          }
+        }
+      }
+    }
+
+    private fun canAdmit(isUser: Boolean): Boolean {
+      if (System.currentTimeMillis() < blockedUntil) return false
+      if (capacity == 0) return true
+      if (isUser) return tokens >= 1
+      // current request is counted in waitingUserRequests only for user requests
+      return waitingUserRequests == 0 && tokens >= 1 + capacity * BACKGROUND_RESERVE
+    }
+
+    private fun refill() {
+      val now = System.currentTimeMillis()
+      if (resetTime in 1..now) {
+        tokens = capacity.toDouble()
+        resetTime = 0
+      }
+      else if (refillPerMs > 0) {
+        tokens = min(capacity.toDouble(), tokens + (now - lastRefill) * refillPerMs)
+      }
+      lastRefill = now
+    }
+
+    fun update(limit: Int?, remaining: Int?, resetTime: Long?, fillRate: Double?, fillInterval: Long?,
+               nearLimit: Boolean, retryAfter: Long?) = lock.withLock {
+      refill()
+      if (limit != null && limit > 0) capacity = limit
+      if (remaining != null) tokens = remaining.toDouble()
+      if (resetTime != null) this.resetTime = resetTime
+      if (fillRate != null && fillInterval != null && fillInterval > 0) refillPerMs = fillRate / fillInterval
+      if (nearLimit && capacity > 0) tokens = min(tokens, capacity * BACKGROUND_RESERVE)
+      if (retryAfter != null) {
+        LOG.debug("Rate limit exceeded, requests are suspended for $retryAfter ms")
+        tokens = 0.0
+        blockedUntil = System.currentTimeMillis() + retryAfter
+      }
+      changed.signalAll()
+    }
+  }
+
+  companion object {
+    private val LOG = logger<BitbucketApiRequestScheduler>()
+
+    private const val LIMIT_HEADER = "X-RateLimit-Limit"
+    private const val REMAINING_HEADER = "X-RateLimit-Remaining"
+    private const val RESET_HEADER = "X-RateLimit-Reset"
+    // Bitbucket Server token bucket parameters
+    private const val FILL_RATE_HEADER = "X-RateLimit-FillRate"
+    private const val INTERVAL_HEADER = "X-RateLimit-Interval-Seconds"
+    // Bitbucket Cloud reports that less than 20% of the limit is left
+    private const val NEAR_LIMIT_HEADER = "X-RateLimit-NearLimit"
+    private const val RETRY_AFTER_HEADER = "Retry-After"
+
+    private const val HTTP_TOO_MANY_REQUESTS = 429
+    private const val DEFAULT_RETRY_AFTER_SECONDS = 60L
+
+    /**
+     * Part of the limit which is left for user requests only
+     */
+    private const val BACKGROUND_RESERVE = 0.2
+    private const val WAIT_INTERVAL_MS = 50L
+  }
+}
@@ -1,7 +1,6 @@
 // Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
 package org.jetbrains.plugins.template.api
 
-import com.intellij.openapi.util.io.StreamUtil
 import com.intellij.util.ThrowableConvertor
 import org.jetbrains.plugins.template.api.BitbucketApiRequest.Post.Companion
 import org.jetbrains.plugins.template.api.data.*
@@ -32,7 +31,7 @@ object BitbucketApiRequests {
           BitbucketApiContentHelper.loadImage(it)
         })
       }
-    }.withOperationName("get profile avatar")
+    }.withOperationName("get profile avatar").withPriority(BitbucketApiRequest.Priority.BACKGROUND)
 
     object Repos : Entity("/repos") {
       @JvmOverloads
@@ -41,8 +40,9 @@ object BitbucketApiRequests {
                 type: Type = Type.DEFAULT,
                 visibility: Visibility = Visibility.DEFAULT,
                 affiliation: Affiliation = Affiliation.DEFAULT,
-                pagination: BitbucketRequestPagination? = null) =
-              BitbucketApiPagesLoader.Request(get(server, type, visibility, affiliation, pagination), ::get)
+                pagination: BitbucketRequestPagination? = null,
+                fields: BitbucketRequestFieldSelection? = null) =
+              BitbucketApiPagesLoader.Request(get(server, type, visibility, affiliation, pagination, fields), ::get)
 
       @JvmOverloads
       @JvmStatic
@@ -50,13 +50,15 @@ object BitbucketApiRequests {
               type: Type = Type.DEFAULT,
               visibility: Visibility = Visibility.DEFAULT,
               affiliation: Affiliation = Affiliation.DEFAULT,
-              pagination: BitbucketRequestPagination? = null): BitbucketApiRequest<BitbucketResponsePage<BitbucketRepo>> {
+              pagination: BitbucketRequestPagination? = null,
+              fields: BitbucketRequestFieldSelection? = null): BitbucketApiRequest<BitbucketResponsePage<BitbucketRepo>> {
         if (type != Type.DEFAULT && (visibility != Visibility.DEFAULT || affiliation != Affiliation.DEFAULT)) {
           throw IllegalArgumentException("Param 'type' should not be used together with 'visibility' or 'affiliation'")
         }
 
         return get(getUrl(server, CurrentUser.urlSuffix, urlSuffix,
-                          getQuery(type.toString(), visibility.toString(), affiliation.toString(), pagination?.toString().orEmpty())))
+                          getQuery(type.toString(), visibility.toString(), affiliation.toString(), pagination?.toString().orEmpty(),
+                                   fields?.forPage()?.toString().orEmpty())))
       }
 
       @JvmStatic
@@ -99,13 +101,16 @@ object BitbucketApiRequests {
 
     object Repos : Entity("/repos") {
       @JvmStatic
-      fun pages(server: BitbucketServerPath, organisation: String, pagination: BitbucketRequestPagination? = null) =
-        BitbucketApiPagesLoader.Request(get(server, organisation, pagination), ::get)
+      fun pages(server: BitbucketServerPath, organisation: String, pagination: BitbucketRequestPagination? = null,
+                fields: BitbucketRequestFieldSelection? = null) =
+        BitbucketApiPagesLoader.Request(get(server, organisation, pagination, fields), ::get)
 
       @JvmOverloads
       @JvmStatic
-      fun get(server: BitbucketServerPath, organisation: String, pagination: BitbucketRequestPagination? = null) =
-        get(getUrl(server, Organisations.urlSuffix, "/", organisation, urlSuffix, getQuery(pagination?.toString().orEmpty())))
+      fun get(server: BitbucketServerPath, organisation: String, pagination: BitbucketRequestPagination? = null,
+              fields: BitbucketRequestFieldSelection? = null) =
+        get(getUrl(server, Organisations.urlSuffix, "/", organisation, urlSuffix,
+                   getQuery(pagination?.toString().orEmpty(), fields?.forPage()?.toString().orEmpty())))
 
       @JvmStatic
       fun get(url: String) = BitbucketApiRequest.Get.jsonPage<BitbucketRepo>(url).withOperationName("get organisation repositories")
@@ -132,14 +137,17 @@ object BitbucketApiRequests {
     fun delete(url: String) = BitbucketApiRequest.Delete.json<Unit>(url).withOperationName("delete repository at $url")
 
     object Branches : Entity("/branches") {
+      @JvmOverloads
       @JvmStatic
-      fun pages(server: BitbucketServerPath, username: String, repoName: String) =
-        BitbucketApiPagesLoader.Request(get(server, username, repoName), ::get)
+      fun pages(server: BitbucketServerPath, username: String, repoName: String, fields: BitbucketRequestFieldSelection? = null) =
+        BitbucketApiPagesLoader.Request(get(server, username, repoName, fields = fields), ::get)
 
       @JvmOverloads
       @JvmStatic
-      fun get(server: BitbucketServerPath, username: String, repoName: String, pagination: BitbucketRequestPagination? = null) =
-        get(getUrl(server, Repos.urlSuffix, "/$username/$repoName", urlSuffix, getQuery(pagination?.toString().orEmpty())))
+      fun get(server: BitbucketServerPath, username: String, repoName: String, pagination: BitbucketRequestPagination? = null,
+              fields: BitbucketRequestFieldSelection? = null) =
+        get(getUrl(server, Repos.urlSuffix, "/$username/$repoName", urlSuffix,
+                   getQuery(pagination?.toString().orEmpty(), fields?.forPage()?.toString().orEmpty())))
 
       @JvmStatic
       fun get(url: String) = BitbucketApiRequest.Get.jsonPage<BitbucketBranch>(url).withOperationName("get branches")
@@ -152,22 +160,22 @@ object BitbucketApiRequests {
     object Commits : Entity("/commits") {
       @JvmStatic
       fun getDiff(repository: BBRepositoryCoordinates, ref: String) =
-        object : BitbucketApiRequest.Get<String>(getUrl(repository, urlSuffix, "/$ref"),
+        object : BitbucketApiRequest.Get<CharSequence>(getUrl(repository, urlSuffix, "/$ref"),
                              BitbucketApiContentHelper.V3_DIFF_JSON_MIME_TYPE) {
-          override fun extractResult(response: BitbucketApiResponse): String {
+          override fun extractResult(response: BitbucketApiResponse): CharSequence {
             return response.handleBody(ThrowableConvertor {
-              StreamUtil.readText(it, Charsets.UTF_8)
+              BitbucketApiDiffReader.read(it)
             })
           }
         }.withOperationName("get diff for ref")
 
       @JvmStatic
       fun getDiff(repository: BBRepositoryCoordinates, refA: String, refB: String) =
-        object : BitbucketApiRequest.Get<String>(getUrl(repository, "/compare/$refA...$refB"),
+        object : BitbucketApiRequest.Get<CharSequence>(getUrl(repository, "/compare/$refA...$refB"),
                              BitbucketApiContentHelper.V3_DIFF_JSON_MIME_TYPE) {
-          override fun extractResult(response: BitbucketApiResponse): String {
+          override fun extractResult(response: BitbucketApiResponse): CharSequence {
             return response.handleBody(ThrowableConvertor {
-              StreamUtil.readText(it, Charsets.UTF_8)
+              BitbucketApiDiffReader.read(it)
             })
           }
         }.withOperationName("get diff between refs")
@@ -180,14 +188,17 @@ object BitbucketApiRequests {
         BitbucketApiRequest.Post.json<BitbucketRepo>(getUrl(server, Repos.urlSuffix, "/$username/$repoName", urlSuffix), Any())
           .withOperationName("fork repository $username/$repoName for cuurent user")
 
+      @JvmOverloads
       @JvmStatic
-      fun pages(server: BitbucketServerPath, username: String, repoName: String) =
-        BitbucketApiPagesLoader.Request(get(server, username, repoName), ::get)
+      fun pages(server: BitbucketServerPath, username: String, repoName: String, fields: BitbucketRequestFieldSelection? = null) =
+        BitbucketApiPagesLoader.Request(get(server, username, repoName, fields = fields), ::get)
 
       @JvmOverloads
       @JvmStatic
-      fun get(server: BitbucketServerPath, username: String, repoName: String, pagination: BitbucketRequestPagination? = null) =
-        get(getUrl(server, Repos.urlSuffix, "/$username/$repoName", urlSuffix, getQuery(pagination?.toString().orEmpty())))
+      fun get(server: BitbucketServerPath, username: String, repoName: String, pagination: BitbucketRequestPagination? = null,
+              fields: BitbucketRequestFieldSelection? = null) =
+        get(getUrl(server, Repos.urlSuffix, "/$username/$repoName", urlSuffix,
+                   getQuery(pagination?.toString().orEmpty(), fields?.forPage()?.toString().orEmpty())))
 
       @JvmStatic
       fun get(url: String) = BitbucketApiRequest.Get.jsonPage<BitbucketRepo>(url).withOperationName("get forks")
@@ -195,14 +206,17 @@ object BitbucketApiRequests {
 
     object Assignees : Entity("/assignees") {
 
+      @JvmOverloads
       @JvmStatic
-      fun pages(server: BitbucketServerPath, username: String, repoName: String) =
-        BitbucketApiPagesLoader.Request(get(server, username, repoName), ::get)
+      fun pages(server: BitbucketServerPath, username: String, repoName: String, fields: BitbucketRequestFieldSelection? = null) =
+        BitbucketApiPagesLoader.Request(get(server, username, repoName, fields = fields), ::get)
 
       @JvmOverloads
       @JvmStatic
-      fun get(server: BitbucketServerPath, username: String, repoName: String, pagination: BitbucketRequestPagination? = null) =
-        get(getUrl(server, Repos.urlSuffix, "/$username/$repoName", urlSuffix, getQuery(pagination?.toString().orEmpty())))
+      fun get(server: BitbucketServerPath, username: String, repoName: String, pagination: BitbucketRequestPagination? = null,
+              fields: BitbucketRequestFieldSelection? = null) =
+        get(getUrl(server, Repos.urlSuffix, "/$username/$repoName", urlSuffix,
+                   getQuery(pagination?.toString().orEmpty(), fields?.forPage()?.toString().orEmpty())))
 
       @JvmStatic
       fun get(url: String) = BitbucketApiRequest.Get.jsonPage<BitbucketUser>(url).withOperationName("get assignees")
@@ -210,14 +224,17 @@ object BitbucketApiRequests {
 
     object Labels : Entity("/labels") {
 
+      @JvmOverloads
       @JvmStatic
-      fun pages(server: BitbucketServerPath, username: String, repoName: String) =
-        BitbucketApiPagesLoader.Request(get(server, username, repoName), ::get)
+      fun pages(server: BitbucketServerPath, username: String, repoName: String, fields: BitbucketRequestFieldSelection? = null) =
+        BitbucketApiPagesLoader.Request(get(server, username, repoName, fields = fields), ::get)
 
       @JvmOverloads
       @JvmStatic
-      fun get(server: BitbucketServerPath, username: String, repoName: String, pagination: BitbucketRequestPagination? = null) =
-        get(getUrl(server, Repos.urlSuffix, "/$username/$repoName", urlSuffix, getQuery(pagination?.toString().orEmpty())))
+      fun get(server: BitbucketServerPath, username: String, repoName: String, pagination: BitbucketRequestPagination? = null,
+              fields: BitbucketRequestFieldSelection? = null) =
+        get(getUrl(server, Repos.urlSuffix, "/$username/$repoName", urlSuffix,
+                   getQuery(pagination?.toString().orEmpty(), fields?.forPage()?.toString().orEmpty())))
 
       @JvmStatic
       fun get(url: String) = BitbucketApiRequest.Get.jsonPage<BitbucketIssueLabel>(url).withOperationName("get assignees")
@@ -225,14 +242,17 @@ object BitbucketApiRequests {
 
     object Collaborators : Entity("/collaborators") {
 
+      @JvmOverloads
       @JvmStatic
-      fun pages(server: BitbucketServerPath, username: String, repoName: String) =
-        BitbucketApiPagesLoader.Request(get(server, username, repoName), ::get)
+      fun pages(server: BitbucketServerPath, username: String, repoName: String, fields: BitbucketRequestFieldSelection? = null) =
+        BitbucketApiPagesLoader.Request(get(server, username, repoName, fields = fields), ::get)
 
       @JvmOverloads
       @JvmStatic
-      fun get(server: BitbucketServerPath, username: String, repoName: String, pagination: BitbucketRequestPagination? = null) =
-        get(getUrl(server, Repos.urlSuffix, "/$username/$repoName", urlSuffix, getQuery(pagination?.toString().orEmpty())))
+      fun get(server: BitbucketServerPath, username: String, repoName: String, pagination: BitbucketRequestPagination? = null,
+              fields: BitbucketRequestFieldSelection? = null) =
+        get(getUrl(server, Repos.urlSuffix, "/$username/$repoName", urlSuffix,
+                   getQuery(pagination?.toString().orEmpty(), fields?.forPage()?.toString().orEmpty())))
 
       @JvmStatic
       fun get(url: String) = BitbucketApiRequest.Get.jsonPage<BitbucketUserWithPermissions>(url).withOperationName("get collaborators")
@@ -326,11 +346,11 @@ object BitbucketApiRequests {
 
       @JvmStatic
       fun getDiff(repository: BBRepositoryCoordinates, number: Long) =
-        object : BitbucketApiRequest.Get<String>(getUrl(repository, urlSuffix, "/$number"),
+        object : BitbucketApiRequest.Get<CharSequence>(getUrl(repository, urlSuffix, "/$number"),
                              BitbucketApiContentHelper.V3_DIFF_JSON_MIME_TYPE) {
-          override fun extractResult(response: BitbucketApiResponse): String {
+          override fun extractResult(response: BitbucketApiResponse): CharSequence {
             return response.handleBody(ThrowableConvertor {
-              StreamUtil.readText(it, Charsets.UTF_8)
+              BitbucketApiDiffReader.read(it)
             })
           }
         }.withOperationName("get pull request diff file")
@@ -390,7 +410,7 @@ object BitbucketApiRequests {
         object : BitbucketApiRequest.Get<String?>(getUrl(server, Repos.urlSuffix, "/$repoPath", urlSuffix,
                                      BitbucketApiUrlQueryBuilder.urlQuery { param(BitbucketRequestPagination(pageSize = 1)) })) {
           override fun extractResult(response: BitbucketApiResponse) = response.findHeader("ETag")
-        }.withOperationName("get pull request list ETag")
+        }.withOperationName("get pull request list ETag").withPriority(BitbucketApiRequest.Priority.BACKGROUND)
 
       object Reviewers : Entity("/requested_reviewers") {
         @JvmStatic
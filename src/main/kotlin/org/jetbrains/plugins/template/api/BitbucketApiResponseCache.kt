@@ -0,0 +1,281 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api
+
+import com.google.common.cache.CacheBuilder
+import com.google.common.cache.Weigher
+import com.intellij.openapi.application.PathManager
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.util.io.FileUtil
+import com.intellij.util.ThrowableConvertor
+import org.jetbrains.plugins.template.util.BitbucketSettings
+import java.io.*
+import java.net.HttpURLConnection
+import java.nio.charset.Charset
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Stores bodies of GET responses together with their ETag to make conditional requests
+ *
+ * Bodies are kept gzipped in a size-bounded in-memory tier and, if enabled in [BitbucketSettings], in an on-disk tier
+ * under the IDE system directory
+ */
+class BitbucketApiResponseCache internal constructor(private val bitbucketSettings: BitbucketSettings,
+                                                     private val diskCacheDirectory: File) {
+
+  private val memoryCache = CacheBuilder.newBuilder()
+    .maximumWeight(MAX_MEMORY_SIZE)
+    .weigher(Weigher<String, Entry> { _, entry -> entry.weight })
+    .build<String, Entry>()
+
+  private val diskWritesCounter = AtomicInteger()
+
+  fun find(key: String): Entry? {
+    memoryCache.getIfPresent(key)?.let { return it }
+    if (!bitbucketSettings.isUseDiskApiCache) return null
+
+    val entry = readFromDisk(key) ?: return null
+    memoryCache.put(key, entry)
+    return entry
+  }
+
+  /**
+   * Creates a response which copies the body as it is being read and stores it if the response has an ETag
+   * and the body is not too large
+   *
+   * Body is stored when response body stream is closed after it was read to the end.
+   * Parsers can stop right after the last token, so a short unread tail is still read on close,
+   * but when a consumer stops early the rest of the body is not downloaded just to cache it and the entry is not stored.
+   */
+  fun record(key: String, connection: HttpURLConnection, body: InputStream): BitbucketApiResponse {
+    val eTag = connection.getHeaderField(ETAG_HEADER)
+    val headers = collectHeaders(connection)
+    val recordingStream = if (eTag == null) body else RecordingInputStream(body) { bytes ->
+      val entry = Entry(eTag, headers, compress(bytes))
+      memoryCache.put(key, entry)
+      if (bitbucketSettings.isUseDiskApiCache) writeToDisk(key, entry)
+    }
+
+    return object : BitbucketApiResponse {
+      override fun findHeader(headerName: String): String? = connection.getHeaderField(headerName)
+
+      override fun <T> readBody(converter: ThrowableConvertor<Reader, T, IOException>): T =
+        InputStreamReader(recordingStream, getCharset(connection.contentType)).use { converter.convert(it) }
+
+      override fun <T> handleBody(converter: ThrowableConvertor<InputStream, T, IOException>): T =
+        recordingStream.use { converter.convert(it) }
+    }
+  }
+
+  fun invalidate(key: String) {
+    memoryCache.invalidate(key)
+    FileUtil.delete(getFile(key))
+  }
+
+  fun clear() {
+    memoryCache.invalidateAll()
+    FileUtil.delete(diskCacheDirectory)
+  }
+
+  private fun readFromDisk(key: String): Entry? {
+    val file = getFile(key)
+    if (!file.isFile) return null
+    return try {
+      DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+        if (input.readInt() != DISK_FORMAT_VERSION) return null
+        val eTag = input.readUTF()
+        val headersCount = input.readInt()
+        val headers = LinkedHashMap<String, String>(headersCount)
+        repeat(headersCount) {
+          headers[input.readUTF()] = input.readUTF()
+        }
+        val body = ByteArray(input.readInt())
+        input.readFully(body)
+        Entry(eTag, headers, body)
+      }
+    }
+    catch (e: IOException) {
+      LOG.debug("Unable to read cached response from $file", e)
+      FileUtil.delete(file)
+      null
+    }
+  }
+
+  private fun writeToDisk(key: String, entry: Entry) {
+    val file = getFile(key)
+    try {
+      FileUtil.createParentDirs(file)
+      DataOutputStream(BufferedOutputStream(FileOutputStream(file))).use { output ->
+        output.writeInt(DISK_FORMAT_VERSION)
+        output.writeUTF(entry.eTag)
+        output.writeInt(entry.headers.size)
+        for ((name, value) in entry.headers) {
+          output.writeUTF(name)
+          output.writeUTF(value)
+        }
+        output.writeInt(entry.compressedBody.size)
+        output.write(entry.compressedBody)
+      }
+    }
+    catch (e: IOException) {
+      LOG.debug("Unable to cache response to $file", e)
+      FileUtil.delete(file)
+    }
+    if (diskWritesCounter.incrementAndGet() % DISK_TRIM_INTERVAL == 0) trimDiskCache()
+  }
+
+  private fun trimDiskCache() {
+    val files = diskCacheDirectory.listFiles() ?: return
+    var size = files.fold(0L) { acc, file -> acc + file.length() }
+    if (size <= MAX_DISK_SIZE) return
+
+    for (file in files.sortedBy { it.lastModified() }) {
+      size -= file.length()
+      FileUtil.delete(file)
+      if (size <= MAX_DISK_SIZE) return
+    }
+  }
+
+  private fun getFile(key: String) = File(diskCacheDirectory, key)
+
+  class Entry internal constructor(val eTag: String,
+                                   internal val headers: Map<String, String>,
+                                   internal val compressedBody: ByteArray) {
+
+    internal val weight: Int
+      get() = compressedBody.size + headers.entries.sumBy { it.key.length + it.value.length } * 2
+
+    fun createResponse(): BitbucketApiResponse = object : BitbucketApiResponse {
+      override fun findHeader(headerName: String): String? = headers.entries.find { it.key.equals(headerName, true) }?.value
+
+      override fun <T> readBody(converter: ThrowableConvertor<Reader, T, IOException>): T =
+        InputStreamReader(openBody(), getCharset(findHeader("Content-Type"))).use { converter.convert(it) }
+
+      override fun <T> handleBody(converter: ThrowableConvertor<InputStream, T, IOException>): T =
+        openBody().use { converter.convert(it) }
+
+      private fun openBody(): InputStream = GZIPInputStream(ByteArrayInputStream(compressedBody))
+    }
+  }
+
+  private class RecordingInputStream(stream: InputStream, private val onComplete: (ByteArray) -> Unit) : FilterInputStream(stream) {
+    private var buffer: ByteArrayOutputStream? = ByteArrayOutputStream()
+    private var closed = false
+    private var endReached = false
+
+    override fun read(): Int {
+      val result = super.read()
+      if (result >= 0) record(byteArrayOf(result.toByte()), 0, 1)
+      else endReached = true
+      return result
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+      val read = super.read(b, off, len)
+      if (read > 0) record(b, off, read)
+      else if (read < 0) endReached = true
+      return read
+    }
+
+    override fun skip(n: Long): Long {
+      // skipped data is not recorded, so the body can't be cached
+      buffer = null
+      return super.skip(n)
+    }
+
+    override fun markSupported() = false
+
+    private fun record(b: ByteArray, off: Int, len: Int) {
+      val buffer = buffer ?: return
+      if (buffer.size() + len > MAX_ENTRY_SIZE) {
+        this.buffer = null
+        return
+      }
+      buffer.write(b, off, len)
+    }
+
+    override fun close() {
+      if (closed) return
+      closed = true
+      try {
+        // only a trailing whitespace is expected after a fully parsed body
+        val tailBuffer = ByteArray(MAX_UNREAD_TAIL_SIZE)
+        var tailSize = 0
+        while (buffer != null && !endReached && tailSize < MAX_UNREAD_TAIL_SIZE) {
+          val read = read(tailBuffer, tailSize, MAX_UNREAD_TAIL_SIZE - tailSize)
+          if (read > 0) tailSize += read
+        }
+      }
+      finally {
+        super.close()
+      }
+      if (endReached) buffer?.let { onComplete(it.toByteArray()) }
+    }
+  }
+
+  companion object {
+    private val LOG = logger<BitbucketApiResponseCache>()
+
+    private const val ETAG_HEADER = "ETag"
+    const val IF_NONE_MATCH_HEADER = "If-None-Match"
+
+    private const val MAX_MEMORY_SIZE = 16L * 1024 * 1024
+    private const val MAX_ENTRY_SIZE = 4 * 1024 * 1024
+    private const val MAX_UNREAD_TAIL_SIZE = 1024
+    private const val MAX_DISK_SIZE = 64L * 1024 * 1024
+    private const val DISK_TRIM_INTERVAL = 100
+    private const val DISK_FORMAT_VERSION = 1
+
+    private val INSTANCE by lazy {
+      BitbucketApiResponseCache(BitbucketSettings.getInstance(), File(PathManager.getSystemPath(), "bitbucket/api-cache"))
+    }
+
+    @JvmStatic
+    fun getInstance(): BitbucketApiResponseCache = INSTANCE
+
+    /**
+     * Responses are cached per account, so the key includes credentials (hashed, the key is also used as a file name)
+     */
+    @JvmStatic
+    fun getKey(credentials: String, request: BitbucketApiRequest<*>): String {
+      val digest = MessageDigest.getInstance("SHA-256")
+      digest.update(credentials.toByteArray(Charsets.UTF_8))
+      digest.update(0)
+      digest.update(request.acceptMimeType.orEmpty().toByteArray(Charsets.UTF_8))
+      digest.update(0)
+      digest.update(request.url.toByteArray(Charsets.UTF_8))
+      return digest.digest().joinToString("") { String.format("%02x", it) }
+    }
+
+    private fun collectHeaders(connection: HttpURLConnection): Map<String, String> {
+      val headers = LinkedHashMap<String, String>()
+      for ((name, values) in connection.headerFields) {
+        // status line is stored under null key
+        if (name == null || values.isNullOrEmpty()) continue
+        // body is stored decoded
+        if (name.equals("Content-Encoding", true) || name.equals("Content-Length", true)) continue
+        headers[name] = values.joinToString(", ")
+      }
+      return headers
+    }
+
+    private fun getCharset(contentType: String?): Charset {
+      val charsetName = contentType?.substringAfter("charset=", "")?.substringBefore(';')?.trim('"', ' ')
+      if (charsetName.isNullOrEmpty()) return Charsets.UTF_8
+      return try {
+        Charset.forName(charsetName)
+      }
+      catch (e: IllegalArgumentException) {
+        Charsets.UTF_8
+      }
+    }
+
+    private fun compress(bytes: ByteArray): ByteArray {
+      val output = ByteArrayOutputStream(bytes.size / 4 + 64)
+      GZIPOutputStream(output).use { it.write(bytes) }
+      return output.toByteArray()
+    }
+  }
+}
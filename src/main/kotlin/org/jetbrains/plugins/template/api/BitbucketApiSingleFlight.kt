@@ -0,0 +1,89 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api
+
+import com.intellij.execution.process.ProcessIOExecutorService
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.util.Computable
+import org.jetbrains.plugins.template.util.BitbucketAsyncUtil
+import org.jetbrains.plugins.template.util.NonReusableEmptyProgressIndicator
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.function.Supplier
+
+/**
+ * Makes concurrent identical requests share a single execution and a single result
+ *
+ * Shared execution runs in background with its own progress indicator. Every caller waits for the result
+ * with its own indicator and can cancel independently, shared execution is cancelled when all callers have cancelled.
+ */
+internal class BitbucketApiSingleFlight {
+  private val calls = ConcurrentHashMap<Any, Call>()
+
+  @Throws(ProcessCanceledException::class)
+  fun <T> execute(key: Any, indicator: ProgressIndicator, executor: (ProgressIndicator) -> T): T {
+    while (true) {
+      indicator.checkCanceled()
+      var created = false
+      val call = calls.computeIfAbsent(key) {
+        created = true
+        Call(key)
+      }
+      if (!call.join()) {
+        // call was aborted while we were joining
+        calls.remove(key, call)
+        continue
+      }
+      if (created) call.start(executor)
+      else LOG.debug("Joined in-flight request $key")
+
+      try {
+        @Suppress("UNCHECKED_CAST")
+        return BitbucketAsyncUtil.awaitFuture(indicator, call.result) as T
+      }
+      finally {
+        call.leave()
+      }
+    }
+  }
+
+  private inner class Call(private val key: Any) {
+    private val indicator = NonReusableEmptyProgressIndicator()
+    val result = CompletableFuture<Any?>()
+
+    private var waiters = 0
+    private var aborted = false
+
+    fun start(executor: (ProgressIndicator) -> Any?) {
+      CompletableFuture.supplyAsync(Supplier {
+        ProgressManager.getInstance().runProcess(Computable { executor(indicator) }, indicator)
+      }, ProcessIOExecutorService.INSTANCE).whenComplete { value, error ->
+        calls.remove(key, this)
+        if (error != null) result.completeExceptionally(error) else result.complete(value)
+      }
+    }
+
+    @Synchronized
+    fun join(): Boolean {
+      if (aborted) return false
+      waiters++
+      return true
+    }
+
+    @Synchronized
+    fun leave() {
+      waiters--
+      if (waiters == 0 && !result.isDone) {
+        aborted = true
+        calls.remove(key, this)
+        indicator.cancel()
+      }
+    }
+  }
+
+  companion object {
+    private val LOG = logger<BitbucketApiSingleFlight>()
+  }
+}
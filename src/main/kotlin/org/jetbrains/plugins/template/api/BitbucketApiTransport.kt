@@ -0,0 +1,370 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api
+
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.util.io.HttpRequests
+import com.intellij.util.io.RequestBuilder
+import com.intellij.util.net.HttpConfigurable
+import com.intellij.util.net.ssl.CertificateManager
+import org.jetbrains.plugins.template.exceptions.BitbucketAuthenticationException
+import org.jetbrains.plugins.template.exceptions.BitbucketConfusingException
+import org.jetbrains.plugins.template.exceptions.BitbucketRateLimitExceededException
+import org.jetbrains.plugins.template.util.BitbucketSettings
+import java.io.ByteArrayOutputStream
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.InputStreamReader
+import java.io.PushbackInputStream
+import java.io.Reader
+import java.net.HttpURLConnection
+import java.net.Proxy
+import java.net.URL
+import java.nio.charset.Charset
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+import java.util.zip.Inflater
+import java.util.zip.InflaterInputStream
+import javax.net.ssl.HttpsURLConnection
+
+/**
+ * Opens HTTP exchanges for [BitbucketApiRequestExecutor]
+ *
+ * Authentication and request specific headers are applied by the executor via connection tuner,
+ * transport is only responsible for the connection itself
+ */
+interface BitbucketApiTransport {
+
+  @Throws(IOException::class, ProcessCanceledException::class)
+  fun <T> connect(request: BitbucketApiRequest<*>,
+                  indicator: ProgressIndicator,
+                  useProxy: Boolean,
+                  connectionTuner: (HttpURLConnection) -> Unit,
+                  processor: (Exchange) -> T): T
+
+  interface Exchange {
+    val connection: HttpURLConnection
+
+    /**
+     * Writes the whole body with known length, so it is streamed without buffering in the connection
+     */
+    @Throws(IOException::class)
+    fun write(body: ByteArray)
+
+    @Throws(IOException::class)
+    fun getInputStream(): InputStream
+
+    @Throws(IOException::class)
+    fun getReader(indicator: ProgressIndicator): Reader
+  }
+
+  /**
+   * Legacy transport - opens a new connection via [HttpRequests] for every request and closes it afterwards
+   */
+  class HttpRequestsTransport(private val bitbucketSettings: BitbucketSettings) : BitbucketApiTransport {
+
+    override fun <T> connect(request: BitbucketApiRequest<*>,
+                             indicator: ProgressIndicator,
+                             useProxy: Boolean,
+                             connectionTuner: (HttpURLConnection) -> Unit,
+                             processor: (Exchange) -> T): T {
+      return createRequestBuilder(request)
+        .tuner { connectionTuner(it as HttpURLConnection) }
+        .useProxy(useProxy)
+        .connect {
+          val connection = it.connection as HttpURLConnection
+          val watch = BitbucketApiCancellationWatcher.watch(connection, indicator)
+          try {
+            processor(object : Exchange {
+              override val connection = connection
+
+              override fun write(body: ByteArray) = it.write(body)
+
+              // stream is already decoded, so the number of saved bytes is approximate
+              override fun getInputStream(): InputStream = watch.countingStream(it.inputStream)
+
+              override fun getReader(indicator: ProgressIndicator): Reader = InputStreamReader(getInputStream(), getCharset(connection))
+            })
+          }
+          catch (e: IOException) {
+            if (watch.isAborted) throw ProcessCanceledException(e)
+            throw e
+          }
+          finally {
+            watch.stop()
+          }
+        }
+    }
+
+    private fun createRequestBuilder(request: BitbucketApiRequest<*>): RequestBuilder {
+      return when (request) {
+        is BitbucketApiRequest.Get -> HttpRequests.request(request.url)
+        is BitbucketApiRequest.Post -> HttpRequests.post(request.url, request.bodyMimeType)
+        is BitbucketApiRequest.Put -> HttpRequests.put(request.url, request.bodyMimeType)
+        is BitbucketApiRequest.Patch -> HttpRequests.patch(request.url, request.bodyMimeType)
+        is BitbucketApiRequest.Head -> HttpRequests.head(request.url)
+        is BitbucketApiRequest.Delete -> {
+          if (request.bodyBytes == null) HttpRequests.delete(request.url) else HttpRequests.delete(request.url, request.bodyMimeType)
+        }
+        else -> throw UnsupportedOperationException("${request.javaClass} is not supported")
+      }
+        .connectTimeout(bitbucketSettings.connectionTimeout)
+        .userAgent(USER_AGENT)
+        .throwStatusCodeException(false)
+        .forceHttps(false)
+        .accept(request.acceptMimeType)
+    }
+  }
+
+  /**
+   * Keeps connections to the server alive between requests
+   *
+   * Connections are not disconnected after the exchange, response bodies are drained instead,
+   * so JDK returns the socket to its keep-alive cache and the next request to the same server skips TCP and TLS handshakes.
+   * Number of simultaneously open connections is bounded per server (schema, host and port), requests over the limit wait
+   * for a connection to be released.
+   */
+  class PooledTransport(private val bitbucketSettings: BitbucketSettings) : BitbucketApiTransport {
+
+    override fun <T> connect(request: BitbucketApiRequest<*>,
+                             indicator: ProgressIndicator,
+                             useProxy: Boolean,
+                             connectionTuner: (HttpURLConnection) -> Unit,
+                             processor: (Exchange) -> T): T {
+      val url = URL(request.url)
+      val pool = pools.computeIfAbsent(getServerKey(url)) { Semaphore(MAX_CONNECTIONS_PER_SERVER, true) }
+      acquire(pool, indicator)
+      try {
+        val connection = openConnection(url, useProxy)
+        configure(connection, request)
+        connectionTuner(connection)
+
+        val watch = BitbucketApiCancellationWatcher.watch(connection, indicator)
+        val exchange = PooledExchange(connection, watch, bitbucketSettings.isCompressRequestBodies)
+        var completed = false
+        try {
+          val result = processor(exchange)
+          completed = true
+          return result
+        }
+        catch (e: IOException) {
+          if (watch.isAborted) throw ProcessCanceledException(e)
+          completed = isResponseHandled(e)
+          throw e
+        }
+        finally {
+          watch.stop()
+          exchange.release(completed && !watch.isAborted)
+        }
+      }
+      finally {
+        pool.release()
+      }
+    }
+
+    private fun openConnection(url: URL, useProxy: Boolean): HttpURLConnection {
+      val connection = (if (useProxy) HttpConfigurable.getInstance().openConnection(url.toExternalForm())
+      else url.openConnection(Proxy.NO_PROXY)) as HttpURLConnection
+      if (connection is HttpsURLConnection) {
+        connection.sslSocketFactory = CertificateManager.getInstance().sslContext.socketFactory
+      }
+      return connection
+    }
+
+    private fun configure(connection: HttpURLConnection, request: BitbucketApiRequest<*>) {
+      connection.connectTimeout = bitbucketSettings.connectionTimeout
+      connection.readTimeout = READ_TIMEOUT
+      connection.useCaches = false
+      connection.instanceFollowRedirects = true
+      connection.setRequestProperty("User-Agent", USER_AGENT)
+      connection.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING)
+      request.acceptMimeType?.let { connection.setRequestProperty("Accept", it) }
+
+      when (request) {
+        is BitbucketApiRequest.Get -> connection.requestMethod = "GET"
+        is BitbucketApiRequest.Patch -> {
+          // HttpURLConnection does not support PATCH
+          connection.requestMethod = "POST"
+          connection.setRequestProperty("X-HTTP-Method-Override", "PATCH")
+          connection.setBodyContentType(request.bodyMimeType)
+        }
+        is BitbucketApiRequest.Post -> {
+          connection.requestMethod = "POST"
+          connection.setBodyContentType(request.bodyMimeType)
+        }
+        is BitbucketApiRequest.Put -> {
+          connection.requestMethod = "PUT"
+          connection.setBodyContentType(request.bodyMimeType)
+        }
+        is BitbucketApiRequest.Head -> connection.requestMethod = "HEAD"
+        is BitbucketApiRequest.Delete -> {
+          connection.requestMethod = "DELETE"
+          if (request.bodyBytes != null) connection.setBodyContentType(request.bodyMimeType)
+        }
+        else -> throw UnsupportedOperationException("${request.javaClass} is not supported")
+      }
+    }
+
+    private fun HttpURLConnection.setBodyContentType(mimeType: String) {
+      doOutput = true
+      setRequestProperty("Content-Type", mimeType)
+    }
+
+    private class PooledExchange(override val connection: HttpURLConnection,
+                                 private val watch: BitbucketApiCancellationWatcher.Watch,
+                                 private val compressBody: Boolean) : Exchange {
+      private var stream: TrackingInputStream? = null
+
+      override fun write(body: ByteArray) {
+        var bytes = body
+        if (compressBody && bytes.size >= MIN_COMPRESSED_BODY_SIZE) {
+          bytes = gzip(bytes)
+          connection.setRequestProperty("Content-Encoding", "gzip")
+        }
+        connection.setFixedLengthStreamingMode(bytes.size)
+        connection.outputStream.use { it.write(bytes) }
+      }
+
+      override fun getInputStream(): InputStream {
+        stream?.let { return it }
+        val rawStream = watch.countingStream(connection.inputStream)
+        return TrackingInputStream(decode(rawStream, connection.contentEncoding)).also { stream = it }
+      }
+
+      override fun getReader(indicator: ProgressIndicator): Reader = InputStreamReader(getInputStream(), getCharset(connection))
+
+      /**
+       * JDK returns the socket to keep-alive cache when response stream is read till the end and closed,
+       * so we only need to finish reading the body if the consumer has not done it
+       */
+      fun release(completed: Boolean) {
+        if (!completed) {
+          connection.disconnect()
+          return
+        }
+        val stream = stream
+        if (stream == null || stream.closed) return
+        try {
+          if (!stream.drain()) connection.disconnect()
+          stream.close()
+        }
+        catch (e: IOException) {
+          LOG.debug("Unable to drain response body of ${connection.url}", e)
+          connection.disconnect()
+        }
+      }
+    }
+
+    private class TrackingInputStream(stream: InputStream) : FilterInputStream(stream) {
+      var closed = false
+        private set
+
+      /**
+       * @return false if there was too much data left to read it
+       */
+      fun drain(): Boolean {
+        val buffer = ByteArray(DRAIN_BUFFER_SIZE)
+        var drained = 0
+        while (drained < MAX_DRAINED_BYTES) {
+          val read = read(buffer)
+          if (read < 0) return true
+          drained += read
+        }
+        return false
+      }
+
+      override fun close() {
+        closed = true
+        super.close()
+      }
+    }
+
+    companion object {
+      private val pools = ConcurrentHashMap<String, Semaphore>()
+
+      // JDK keeps up to 5 idle connections per destination (http.maxConnections), no point in opening more
+      private const val MAX_CONNECTIONS_PER_SERVER = 5
+      private const val READ_TIMEOUT = 60 * 1000
+      private const val DRAIN_BUFFER_SIZE = 8 * 1024
+      private const val MAX_DRAINED_BYTES = 64 * 1024
+      // smaller bodies are not worth compressing
+      private const val MIN_COMPRESSED_BODY_SIZE = 8 * 1024
+
+      private fun gzip(bytes: ByteArray): ByteArray {
+        val output = ByteArrayOutputStream(bytes.size / 4 + 64)
+        GZIPOutputStream(output).use { it.write(bytes) }
+        return output.toByteArray()
+      }
+
+      private fun isResponseHandled(e: IOException) = e is BitbucketConfusingException
+                                                      || e is BitbucketAuthenticationException
+                                                      || e is BitbucketRateLimitExceededException
+
+      private fun getServerKey(url: URL) = "${url.protocol}://${url.host}:${if (url.port == -1) url.defaultPort else url.port}"
+
+      private fun acquire(pool: Semaphore, indicator: ProgressIndicator) {
+        while (true) {
+          indicator.checkCanceled()
+          try {
+            if (pool.tryAcquire(50, TimeUnit.MILLISECONDS)) return
+          }
+          catch (e: InterruptedException) {
+            throw ProcessCanceledException(e)
+          }
+        }
+      }
+    }
+  }
+
+  companion object {
+    private val LOG = logger<BitbucketApiTransport>()
+
+    private const val USER_AGENT = "Intellij IDEA Bitbucket Plugin"
+    private const val ACCEPT_ENCODING = "gzip, deflate"
+    private const val DECODER_BUFFER_SIZE = 16 * 1024
+
+    /**
+     * Wraps the stream to decode the body on the fly according to Content-Encoding
+     */
+    @JvmStatic
+    fun decode(stream: InputStream, contentEncoding: String?): InputStream = when {
+      contentEncoding.equals("gzip", true) || contentEncoding.equals("x-gzip", true) -> GZIPInputStream(stream, DECODER_BUFFER_SIZE)
+      contentEncoding.equals("deflate", true) -> {
+        // "deflate" should be zlib-wrapped, but some servers send raw deflate data
+        val pushbackStream = PushbackInputStream(stream, 2)
+        val header = ByteArray(2)
+        val read = pushbackStream.read(header)
+        if (read > 0) pushbackStream.unread(header, 0, read)
+        val isZlib = read == 2 && (header[0].toInt() and 0x0F) == 8
+                     && ((header[0].toInt() and 0xFF) * 256 + (header[1].toInt() and 0xFF)) % 31 == 0
+        InflaterInputStream(pushbackStream, Inflater(!isZlib), DECODER_BUFFER_SIZE)
+      }
+      else -> stream
+    }
+
+    private fun getCharset(connection: HttpURLConnection): Charset {
+      val contentType = connection.contentType ?: return Charsets.UTF_8
+      val charsetName = contentType.split(';')
+                          .map { it.trim() }
+                          .find { it.startsWith("charset=", true) }
+                          ?.substring("charset=".length)
+                          ?.trim('"')
+                        ?: return Charsets.UTF_8
+      return try {
+        Charset.forName(charsetName)
+      }
+      catch (e: IllegalArgumentException) {
+        Charsets.UTF_8
+      }
+    }
+
+    @JvmStatic
+    fun create(bitbucketSettings: BitbucketSettings): BitbucketApiTransport =
+      if (bitbucketSettings.isUsePooledConnections) PooledTransport(bitbucketSettings) else HttpRequestsTransport(bitbucketSettings)
+  }
+}
@@ -8,7 +8,9 @@ class BitbucketResponsePage<T> constructor(val items: List<T>,
                                            val firstLink: String? = null,
                                            val prevLink: String? = null,
                                            val nextLink: String? = null,
-                                           val lastLink: String? = null) {
+                                           val lastLink: String? = null,
+                                           val pageSize: Int? = null,
+                                           val totalSize: Int? = null) {
 
   val hasNext = nextLink != null
 
@@ -16,6 +18,7 @@ class BitbucketResponsePage<T> constructor(val items: List<T>,
     const val HEADER_NAME = "Link"
 
     private val HEADER_SECTION_REGEX = Regex("""^<(.*)>; rel="(first|prev|next|last)"$""")
+    private val PAGE_PARAMETER_REGEX = Regex("""([?&]page=)(\d+)""")
 
     //<https://api.github.com/search/code?q=addClass+user%3Amozilla&page=15>; rel="next", <https://api.github.com/search/code?q=addClass+user%3Amozilla&page=34>; rel="last", <https://api.github.com/search/code?q=addClass+user%3Amozilla&page=1>; rel="first", <https://api.github.com/search/code?q=addClass+user%3Amozilla&page=13>; rel="prev"
     @JvmStatic
@@ -46,6 +49,21 @@ class BitbucketResponsePage<T> constructor(val items: List<T>,
       return BitbucketResponsePage(items, firstLink, prevLink, nextLink, lastLink)
     }
 
+    /**
+     * Creates page from the pagination fields of the response body
+     *
+     * Links to the first and the last pages are calculated from the total size when the links contain page number.
+     */
+    @JvmStatic
+    fun <T> fromBody(items: List<T>, pageSize: Int?, totalSize: Int?, nextLink: String?, prevLink: String?): BitbucketResponsePage<T> {
+      val link = nextLink ?: prevLink
+      val pageMatch = link?.let { PAGE_PARAMETER_REGEX.find(it) }
+      fun linkToPage(page: Int) = pageMatch?.let { link.replaceRange(it.range, it.groupValues[1] + page) }
+
+      val lastPage = if (totalSize != null && pageSize != null && pageSize > 0) maxOf(1, (totalSize + pageSize - 1) / pageSize) else null
+      return BitbucketResponsePage(items, linkToPage(1), prevLink, nextLink, lastPage?.let(::linkToPage), pageSize, totalSize)
+    }
+
     fun <T> empty(nextLink: String? = null) = BitbucketResponsePage<T>(emptyList(), nextLink = nextLink)
   }
 }
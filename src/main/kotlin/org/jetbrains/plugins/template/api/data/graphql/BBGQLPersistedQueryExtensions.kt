@@ -0,0 +1,10 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api.data.graphql
+
+class BBGQLPersistedQueryExtensions(sha256Hash: String) {
+  val persistedQuery = PersistedQuery(sha256Hash)
+
+  class PersistedQuery(val sha256Hash: String) {
+    val version = 1
+  }
+}
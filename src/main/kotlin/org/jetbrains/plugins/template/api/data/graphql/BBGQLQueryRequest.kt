@@ -1,4 +1,4 @@
 // Copyright 2000-2019 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
 package org.jetbrains.plugins.template.api.data.graphql
 
-class BBGQLQueryRequest(val query: String, val variables: Any)
\ No newline at end of file
+class BBGQLQueryRequest(val query: String?, val variables: Any, val extensions: BBGQLPersistedQueryExtensions? = null)
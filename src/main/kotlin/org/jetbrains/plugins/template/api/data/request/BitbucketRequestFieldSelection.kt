@@ -0,0 +1,106 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api.data.request
+
+import com.intellij.util.io.URLUtil
+import org.jetbrains.plugins.template.api.BitbucketApiContentHelper
+import java.util.concurrent.ConcurrentHashMap
+
+@DslMarker
+private annotation class FieldSelectionDsl
+
+/**
+ * Response fields the server should send, other fields are omitted from the response
+ *
+ * Paths are dot-separated JSON property names relative to the response entity, or to the page item for page requests.
+ * Page requests send the selection with [forPage], so the paths are nested under the page items and pagination fields are kept.
+ * Selection can be derived from the data class the response is read to with [of] or listed with [fields].
+ */
+class BitbucketRequestFieldSelection private constructor(val paths: Set<String>) {
+
+  operator fun plus(other: BitbucketRequestFieldSelection) = BitbucketRequestFieldSelection(paths + other.paths)
+
+  /**
+   * Selection of the page object with the selected fields of its items, pagination fields are always selected
+   * since the following pages are requested by them
+   */
+  fun forPage(): BitbucketRequestFieldSelection {
+    val pagePaths = linkedSetOf<String>()
+    paths.mapTo(pagePaths) { "$PAGE_ITEMS_FIELD.$it" }
+    pagePaths.addAll(PAGINATION_FIELDS)
+    return BitbucketRequestFieldSelection(pagePaths)
+  }
+
+  override fun toString(): String {
+    return "$PARAMETER_NAME=${URLUtil.encodeURIComponent(paths.joinToString(","))}"
+  }
+
+  @FieldSelectionDsl
+  class Builder internal constructor(private val prefix: String, private val paths: MutableSet<String>) {
+    /**
+     * Selects the field with all its content
+     */
+    operator fun String.unaryPlus() {
+      paths.add(prefix + this)
+    }
+
+    /**
+     * Selects only the listed fields of the nested object
+     */
+    operator fun String.invoke(init: Builder.() -> Unit) {
+      Builder("$prefix$this.", paths).init()
+    }
+
+    /**
+     * Selects the fields read to [clazz] from the nested object
+     */
+    fun String.from(clazz: Class<*>) {
+      BitbucketRequestFieldSelection.of(clazz).paths.mapTo(paths) { "$prefix$this.$it" }
+    }
+  }
+
+  companion object {
+    const val PARAMETER_NAME = "fields"
+
+    private const val PAGE_ITEMS_FIELD = "values"
+    private val PAGINATION_FIELDS = listOf("next", "previous", "page", "pagelen", "size")
+
+    /**
+     * Nesting of the derived selection, deeper objects are requested as a whole
+     */
+    private const val MAX_DERIVED_DEPTH = 3
+
+    private const val DATA_PACKAGE = "org.jetbrains.plugins.template.api.data."
+
+    private val derived = ConcurrentHashMap<Class<*>, BitbucketRequestFieldSelection>()
+
+    /**
+     * Selects the properties [clazz] is read from, nested data objects are expanded to their properties
+     */
+    @JvmStatic
+    fun of(clazz: Class<*>): BitbucketRequestFieldSelection = derived.computeIfAbsent(clazz) {
+      val paths = linkedSetOf<String>()
+      collectPaths(it, "", setOf(it), MAX_DERIVED_DEPTH, paths)
+      BitbucketRequestFieldSelection(paths)
+    }
+
+    inline fun <reified T> of() = of(T::class.java)
+
+    @JvmStatic
+    fun fields(vararg paths: String) = BitbucketRequestFieldSelection(linkedSetOf(*paths))
+
+    fun fields(init: Builder.() -> Unit): BitbucketRequestFieldSelection {
+      val paths = linkedSetOf<String>()
+      Builder("", paths).init()
+      return BitbucketRequestFieldSelection(paths)
+    }
+
+    private fun collectPaths(clazz: Class<*>, prefix: String, visiting: Set<Class<*>>, depth: Int, result: MutableSet<String>) {
+      for ((name, type) in BitbucketApiContentHelper.getJsonProperties(clazz)) {
+        val expand = depth > 1 && !type.isEnum && type !in visiting && type.name.startsWith(DATA_PACKAGE)
+        val sizeBefore = result.size
+        if (expand) collectPaths(type, "$prefix$name.", visiting + type, depth - 1, result)
+        if (result.size == sizeBefore) result.add(prefix + name)
+      }
+    }
+  }
+}
@@ -2,6 +2,7 @@
 package org.jetbrains.plugins.template.api.util
 
 import com.intellij.openapi.progress.ProgressIndicator
+import org.jetbrains.plugins.template.api.BBGQLRequestBatcher
 import org.jetbrains.plugins.template.api.BitbucketApiRequest
 import org.jetbrains.plugins.template.api.BitbucketApiRequestExecutor
 import org.jetbrains.plugins.template.api.data.graphql.BBGQLPageInfo
@@ -12,10 +13,19 @@ import org.jetbrains.plugins.template.api.data.request.BitbucketRequestPaginatio
 import java.util.*
 import java.util.concurrent.atomic.AtomicReference
 
+/**
+ * Loads GraphQL connection pages by cursor
+ *
+ * Page size is adapted to the load time of the pages up to [pageSize] (see [BitbucketAdaptivePageSize]),
+ * so the first page arrives quickly and the following ones need fewer round trips.
+ */
 abstract class BBGQLPagesLoader<T, R>(private val executor: BitbucketApiRequestExecutor,
                                       private val requestProducer: (BBGQLRequestPagination) -> BitbucketApiRequest.Post<T>,
                                       private val supportsTimestampUpdates: Boolean = false,
-                                      private val pageSize: Int = BitbucketRequestPagination.DEFAULT_PAGE_SIZE) {
+                                      pageSize: Int = BitbucketRequestPagination.DEFAULT_PAGE_SIZE,
+                                      private val batcher: BBGQLRequestBatcher? = null) {
+
+  private val adaptivePageSize = BitbucketAdaptivePageSize(maxSize = pageSize)
 
   private val iterationDataRef = AtomicReference(IterationData(true))
 
@@ -26,18 +36,25 @@ abstract class BBGQLPagesLoader<T, R>(private val executor: BitbucketApiRequestE
   fun loadNext(progressIndicator: ProgressIndicator, update: Boolean = false): R? {
     val iterationData = iterationDataRef.get()
 
+    val requestedSize = adaptivePageSize.size
     val pagination: BBGQLRequestPagination =
       if (update) {
         if (hasNext || !supportsTimestampUpdates) return null
-        BBGQLRequestPagination(iterationData.timestamp, pageSize)
+        BBGQLRequestPagination(iterationData.timestamp, requestedSize)
       }
       else {
         if (!hasNext) return null
-        BBGQLRequestPagination(iterationData.cursor, pageSize)
+        BBGQLRequestPagination(iterationData.cursor, requestedSize)
       }
 
     val executionDate = Date()
-    val response = executor.execute(progressIndicator, requestProducer(pagination))
+    val request = requestProducer(pagination)
+    // first page is usually requested along with other data, so it can be merged with other queries
+    @Suppress("UNCHECKED_CAST")
+    val response = if (batcher != null && request is BitbucketApiRequest.Post.GQLQuery<*> && !update && iterationData.cursor == null)
+      batcher.execute(progressIndicator, request as BitbucketApiRequest.Post.GQLQuery<T>)
+    else executor.execute(progressIndicator, request)
+    adaptivePageSize.onPageLoaded(requestedSize, request.exchangeTimeMs)
     val page = extractPageInfo(response)
     iterationDataRef.compareAndSet(iterationData, IterationData(page, executionDate))
 
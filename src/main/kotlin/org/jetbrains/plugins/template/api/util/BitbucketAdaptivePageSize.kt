@@ -0,0 +1,54 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api.util
+
+import org.jetbrains.plugins.template.api.data.request.BitbucketRequestPagination
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Chooses page size from the time it took to load the previous pages
+ *
+ * The first page is small, so the first results are shown quickly. While pages load faster than [TARGET_PAGE_TIME_MS]
+ * the size is doubled up to [maxSize], so bulk loads need fewer round trips on high-latency connections.
+ * When a page is too slow, i.e. the items are large or the link is slow, the size is halved down to [minSize].
+ * Page time is the exchange time measured by the executor (see [org.jetbrains.plugins.template.api.BitbucketApiRequest.exchangeTimeMs]),
+ * it includes the transfer, so the payload size is accounted for along with the latency,
+ * and excludes the time the request waited for the rate limit or for a batch.
+ * Sizes are always [minSize] multiplied by a power of two.
+ */
+class BitbucketAdaptivePageSize(minSize: Int = MIN_PAGE_SIZE,
+                                val maxSize: Int = BitbucketRequestPagination.DEFAULT_PAGE_SIZE) {
+  val minSize = min(minSize, maxSize)
+
+  @Volatile
+  var size = this.minSize
+    private set
+
+  /**
+   * @param pageSize size the page was requested with
+   * @param timeMs exchange time of the page, negative if unknown, e.g. the page was not loaded by this request
+   */
+  @Synchronized
+  fun onPageLoaded(pageSize: Int, timeMs: Long) {
+    if (timeMs < 0) return
+    size = when {
+      timeMs < TARGET_PAGE_TIME_MS / 2 -> max(size, min(pageSize * 2, maxSize))
+      timeMs > TARGET_PAGE_TIME_MS * 2 -> max(min(size, pageSize / 2), minSize)
+      else -> size
+    }
+  }
+
+  /**
+   * Largest size not greater than the current one which aligns with [offset], so page numbers can be calculated for it
+   */
+  fun getAlignedSize(offset: Int): Int {
+    var alignedSize = size
+    while (alignedSize > minSize && offset % alignedSize != 0) alignedSize /= 2
+    return alignedSize
+  }
+
+  companion object {
+    const val MIN_PAGE_SIZE = 25
+    const val TARGET_PAGE_TIME_MS = 1000L
+  }
+}
@@ -5,11 +5,18 @@ import com.intellij.openapi.progress.ProgressIndicator
 import org.jetbrains.plugins.template.api.BitbucketApiRequest
 import org.jetbrains.plugins.template.api.BitbucketApiRequestExecutor
 import org.jetbrains.plugins.template.api.data.BitbucketResponsePage
+import org.jetbrains.plugins.template.api.data.request.BitbucketRequestPagination
+import org.jetbrains.plugins.template.util.BitbucketAsyncUtil
 import java.io.IOException
+import java.util.concurrent.CompletableFuture
 import java.util.function.Predicate
 
 object BitbucketApiPagesLoader {
 
+  private const val STREAMING_BATCH_SIZE = 20
+
+  private val PAGE_PARAMETER_REGEX = Regex("""([?&]page=)(\d+)""")
+
   @Throws(IOException::class)
   @JvmStatic
   fun <T> loadAll(executor: BitbucketApiRequestExecutor, indicator: ProgressIndicator, pagesRequest: Request<T>): List<T> {
@@ -24,42 +31,227 @@ object BitbucketApiPagesLoader {
                   indicator: ProgressIndicator,
                   pagesRequest: Request<T>,
                   pageItemsConsumer: (List<T>) -> Unit) {
-    var request: BitbucketApiRequest<BitbucketResponsePage<T>>? = pagesRequest.initialRequest
-    while (request != null) {
-      val page = executor.execute(indicator, request)
-      pageItemsConsumer(page.items)
-      request = page.nextLink?.let(pagesRequest.urlRequestProvider)
+    val batch = mutableListOf<T>()
+    val flushBatch = {
+      if (batch.isNotEmpty()) {
+        pageItemsConsumer(batch.toList())
+        batch.clear()
+      }
+    }
+    // items of sequentially loaded pages are passed to consumer in small batches while the page is still being parsed
+    val streamingRequestMapper = { request: BitbucketApiRequest<BitbucketResponsePage<T>> ->
+      @Suppress("UNCHECKED_CAST")
+      (request as? BitbucketApiRequest.Get.JsonPage<T>)?.streaming { item ->
+        batch.add(item)
+        if (batch.size >= STREAMING_BATCH_SIZE) flushBatch()
+      } ?: request
+    }
+
+    processPages(executor, indicator, pagesRequest, streamingRequestMapper) {
+      flushBatch()
+      if (it.items.isNotEmpty()) pageItemsConsumer(it.items)
+      true
     }
   }
 
   @Throws(IOException::class)
   @JvmStatic
   fun <T> find(executor: BitbucketApiRequestExecutor, indicator: ProgressIndicator, pagesRequest: Request<T>, predicate: Predicate<T>): T? {
-    var request: BitbucketApiRequest<BitbucketResponsePage<T>>? = pagesRequest.initialRequest
-    while (request != null) {
-      val page = executor.execute(indicator, request)
-      page.items.find { predicate.test(it) }?.let { return it }
-      request = page.nextLink?.let(pagesRequest.urlRequestProvider)
+    var result: T? = null
+    processPages(executor, indicator, pagesRequest) { page ->
+      result = page.items.find { predicate.test(it) }
+      result == null
     }
-    return null
+    return result
   }
 
   @Throws(IOException::class)
   @JvmStatic
   fun <T> load(executor: BitbucketApiRequestExecutor, indicator: ProgressIndicator, pagesRequest: Request<T>, maximum: Int): List<T> {
     val result = mutableListOf<T>()
-    var request: BitbucketApiRequest<BitbucketResponsePage<T>>? = pagesRequest.initialRequest
-    while (request != null) {
-      val page = executor.execute(indicator, request)
+    processPages(executor, indicator, pagesRequest) { page ->
       for (item in page.items) {
         result.add(item)
-        if (result.size == maximum) return result
+        if (result.size == maximum) return@processPages false
       }
-      request = page.nextLink?.let(pagesRequest.urlRequestProvider)
+      true
     }
     return result
   }
 
-  class Request<T>(val initialRequest: BitbucketApiRequest<BitbucketResponsePage<T>>,
-                   val urlRequestProvider: (String) -> BitbucketApiRequest<BitbucketResponsePage<T>>)
-}
\ No newline at end of file
+  /**
+   * Loads pages and passes them to [processor] in order until it returns false
+   *
+   * When the request doesn't specify pagination, page size is adapted to the load time of the pages (see [BitbucketAdaptivePageSize]),
+   * unless the pagination is in the response body, then the first page is requested with the maximum size.
+   * When a page knows the link to the last one, the rest of the page links are calculated and pages are loaded concurrently.
+   * Outstanding requests are cancelled when processing is stopped.
+   */
+  private fun <T> processPages(executor: BitbucketApiRequestExecutor,
+                               indicator: ProgressIndicator,
+                               pagesRequest: Request<T>,
+                               sequentialRequestMapper: (BitbucketApiRequest<BitbucketResponsePage<T>>)
+                               -> BitbucketApiRequest<BitbucketResponsePage<T>> = { it },
+                               processor: (BitbucketResponsePage<T>) -> Boolean) {
+    val url = pagesRequest.initialRequest.url
+    val pagination = pagesRequest.pagination
+    val page = when {
+      PAGE_PARAMETER_REGEX.containsMatchIn(url) || pagination.pageSizeRegex.containsMatchIn(url) -> {
+        executor.execute(indicator, sequentialRequestMapper(pagesRequest.initialRequest)).takeIf(processor)
+      }
+      // total size is known after the first page, so the rest of the pages can be loaded concurrently right away
+      pagination == Pagination.BODY -> {
+        val link = setParameter(url, pagination.pageSizeRegex, pagination.pageSizeParameter, BitbucketRequestPagination.DEFAULT_PAGE_SIZE)
+        executor.execute(indicator, sequentialRequestMapper(pagesRequest.urlRequestProvider(link))).takeIf(processor)
+      }
+      else -> processPagesAdaptively(executor, indicator, pagesRequest, BitbucketAdaptivePageSize(), sequentialRequestMapper, processor)
+    }
+    if (page != null) processRemainingPages(executor, indicator, pagesRequest, page, sequentialRequestMapper, processor)
+  }
+
+  /**
+   * Loads pages one by one growing or shrinking the page size until the maximum size is reached
+   *
+   * Offset of the next page is always a multiple of the next page size, so page number can be calculated for it.
+   *
+   * @return last loaded page with the maximum size or null if there are no more pages or processing was stopped
+   */
+  private fun <T> processPagesAdaptively(executor: BitbucketApiRequestExecutor,
+                                         indicator: ProgressIndicator,
+                                         pagesRequest: Request<T>,
+                                         pageSize: BitbucketAdaptivePageSize,
+                                         requestMapper: (BitbucketApiRequest<BitbucketResponsePage<T>>)
+                                         -> BitbucketApiRequest<BitbucketResponsePage<T>>,
+                                         processor: (BitbucketResponsePage<T>) -> Boolean): BitbucketResponsePage<T>? {
+    var loaded = 0
+    var requestedSize = pageSize.size
+    var request = pagesRequest.urlRequestProvider(withPageParameters(pagesRequest.initialRequest.url, 1, requestedSize))
+    while (true) {
+      val mappedRequest = requestMapper(request)
+      val page = executor.execute(indicator, mappedRequest)
+      pageSize.onPageLoaded(requestedSize, mappedRequest.exchangeTimeMs)
+      if (!processor(page)) return null
+      if (requestedSize == pageSize.maxSize) return page
+
+      val nextLink = page.nextLink ?: return null
+      loaded += requestedSize
+      requestedSize = pageSize.getAlignedSize(loaded)
+      request = pagesRequest.urlRequestProvider(withPageParameters(nextLink, loaded / requestedSize + 1, requestedSize))
+    }
+  }
+
+  private fun <T> processRemainingPages(executor: BitbucketApiRequestExecutor,
+                                        indicator: ProgressIndicator,
+                                        pagesRequest: Request<T>,
+                                        page: BitbucketResponsePage<T>,
+                                        sequentialRequestMapper: (BitbucketApiRequest<BitbucketResponsePage<T>>)
+                                        -> BitbucketApiRequest<BitbucketResponsePage<T>>,
+                                        processor: (BitbucketResponsePage<T>) -> Boolean) {
+    val nextLink = page.nextLink ?: return
+    val pageLinks = page.lastLink?.let { getPageLinks(nextLink, it) }
+    if (pageLinks == null || pageLinks.size < 2) {
+      processPagesSequentially(executor, indicator, pagesRequest, nextLink, sequentialRequestMapper, processor)
+      return
+    }
+
+    val lastPage = processPagesConcurrently(executor, indicator, pagesRequest, pageLinks, processor) ?: return
+    // more pages could have been added while we were loading
+    lastPage.nextLink?.let { processPagesSequentially(executor, indicator, pagesRequest, it, sequentialRequestMapper, processor) }
+  }
+
+  private fun <T> processPagesSequentially(executor: BitbucketApiRequestExecutor,
+                                           indicator: ProgressIndicator,
+                                           pagesRequest: Request<T>,
+                                           link: String,
+                                           requestMapper: (BitbucketApiRequest<BitbucketResponsePage<T>>)
+                                           -> BitbucketApiRequest<BitbucketResponsePage<T>>,
+                                           processor: (BitbucketResponsePage<T>) -> Boolean) {
+    var request: BitbucketApiRequest<BitbucketResponsePage<T>>? = pagesRequest.urlRequestProvider(link)
+    while (request != null) {
+      val page = executor.execute(indicator, requestMapper(request))
+      if (!processor(page)) return
+      request = page.nextLink?.let(pagesRequest.urlRequestProvider)
+    }
+  }
+
+  /**
+   * @return last loaded page or null if processing was stopped
+   */
+  private fun <T> processPagesConcurrently(executor: BitbucketApiRequestExecutor,
+                                           indicator: ProgressIndicator,
+                                           pagesRequest: Request<T>,
+                                           links: List<String>,
+                                           processor: (BitbucketResponsePage<T>) -> Boolean): BitbucketResponsePage<T>? {
+    val futures = ArrayList<CompletableFuture<BitbucketResponsePage<T>>>(links.size)
+
+    fun submit(link: String) {
+      futures.add(BitbucketApiParallelExecutor.submit(executor, indicator, pagesRequest.urlRequestProvider(link)))
+    }
+
+    try {
+      // pages are requested ahead only as far as they can be loaded at the same time
+      val maxParallelPages = BitbucketApiParallelExecutor.maxParallelRequests
+      var submitted = 0
+      while (submitted < maxParallelPages && submitted < links.size) submit(links[submitted++])
+
+      var lastPage: BitbucketResponsePage<T>? = null
+      for (i in links.indices) {
+        val page = BitbucketAsyncUtil.awaitFuture(indicator, futures[i])
+        if (submitted < links.size) submit(links[submitted++])
+        if (!processor(page)) return null
+        lastPage = page
+      }
+      return lastPage
+    }
+    finally {
+      futures.forEach { it.cancel(true) }
+    }
+  }
+
+  /**
+   * Calculates links to all pages from [nextLink] to [lastLink] if they only differ in page number
+   */
+  private fun getPageLinks(nextLink: String, lastLink: String): List<String>? {
+    val nextMatch = PAGE_PARAMETER_REGEX.find(nextLink) ?: return null
+    val lastMatch = PAGE_PARAMETER_REGEX.find(lastLink) ?: return null
+    if (nextLink.removeRange(nextMatch.range) != lastLink.removeRange(lastMatch.range)) return null
+
+    val nextPage = nextMatch.groupValues[2].toIntOrNull() ?: return null
+    val lastPage = lastMatch.groupValues[2].toIntOrNull() ?: return null
+    if (lastPage < nextPage) return null
+
+    return (nextPage..lastPage).map {
+      nextLink.replaceRange(nextMatch.range, nextMatch.groupValues[1] + it)
+    }
+  }
+
+  private fun withPageParameters(link: String, page: Int, perPage: Int) =
+    setParameter(setParameter(link, PAGE_PARAMETER_REGEX, "page", page),
+                 Pagination.LINK_HEADER.pageSizeRegex, Pagination.LINK_HEADER.pageSizeParameter, perPage)
+
+  private fun setParameter(link: String, regex: Regex, name: String, value: Int): String {
+    val match = regex.find(link) ?: return link + (if (link.contains('?')) "&" else "?") + "$name=$value"
+    return link.replaceRange(match.range, match.groupValues[1] + value)
+  }
+
+  class Request<T> @JvmOverloads constructor(val initialRequest: BitbucketApiRequest<BitbucketResponsePage<T>>,
+                                             val urlRequestProvider: (String) -> BitbucketApiRequest<BitbucketResponsePage<T>>,
+                                             val pagination: Pagination = Pagination.LINK_HEADER)
+
+  /**
+   * Where the server sends the links to the other pages
+   */
+  enum class Pagination(internal val pageSizeParameter: String) {
+    /**
+     * Links are in the [BitbucketResponsePage.HEADER_NAME] header
+     */
+    LINK_HEADER("per_page"),
+
+    /**
+     * Links, page size and total number of items are in the response body, see [BitbucketApiRequest.Get.JsonBodyPage]
+     */
+    BODY("pagelen");
+
+    internal val pageSizeRegex = Regex("""([?&]$pageSizeParameter=)(\d+)""")
+  }
+}
@@ -0,0 +1,113 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api.util
+
+import com.intellij.concurrency.SensitiveProgressWrapper
+import com.intellij.execution.process.ProcessIOExecutorService
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.util.Computable
+import org.jetbrains.annotations.CalledInAny
+import org.jetbrains.annotations.CalledInBackground
+import org.jetbrains.plugins.template.api.BitbucketApiRequest
+import org.jetbrains.plugins.template.api.BitbucketApiRequestExecutor
+import org.jetbrains.plugins.template.util.BitbucketAsyncUtil
+import org.jetbrains.plugins.template.util.BitbucketSettings
+import java.io.IOException
+import java.net.URL
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
+import java.util.function.Supplier
+
+/**
+ * Executes independent requests concurrently with at most [BitbucketSettings.getMaxParallelRequestsPerServer] requests
+ * to the same server at a time
+ *
+ * The limit is shared by all callers, e.g. concurrently loaded pages and commit diffs of different pull requests.
+ */
+object BitbucketApiParallelExecutor {
+
+  private val serverExecutors = ConcurrentHashMap<String, ServerExecutor>()
+
+  val maxParallelRequests: Int
+    get() = BitbucketSettings.getInstance().maxParallelRequestsPerServer.coerceAtLeast(1)
+
+  /**
+   * @return results in the order of [requests]
+   *
+   * Cancelling [indicator] or a failure of any request cancels the outstanding ones.
+   */
+  @CalledInBackground
+  @Throws(IOException::class, ProcessCanceledException::class)
+  @JvmStatic
+  fun <T> executeAll(executor: BitbucketApiRequestExecutor, indicator: ProgressIndicator, requests: List<BitbucketApiRequest<T>>): List<T> {
+    if (requests.isEmpty()) return emptyList()
+    if (requests.size == 1) return listOf(executor.execute(indicator, requests.single()))
+
+    val futures = ArrayList<CompletableFuture<T>>(requests.size)
+    try {
+      for (request in requests) futures.add(submit(executor, indicator, request))
+      return futures.map { BitbucketAsyncUtil.awaitFuture(indicator, it) }
+    }
+    finally {
+      futures.forEach { it.cancel(true) }
+    }
+  }
+
+  /**
+   * Executes [request] when there is a free slot for its server
+   *
+   * Request runs under its own wrapper of [indicator], since running a process starts and stops the indicator.
+   * Cancelling the returned future cancels the request.
+   */
+  @CalledInAny
+  fun <T> submit(executor: BitbucketApiRequestExecutor, indicator: ProgressIndicator, request: BitbucketApiRequest<T>): CompletableFuture<T> {
+    val requestIndicator = SensitiveProgressWrapper(indicator)
+    val future = CompletableFuture.supplyAsync(Supplier {
+      ProgressManager.getInstance().runProcess(Computable { executor.execute(requestIndicator, request) }, requestIndicator)
+    }, getServerExecutor(request.url))
+    future.whenComplete { _, _ -> if (future.isCancelled) requestIndicator.cancel() }
+    return future
+  }
+
+  private fun getServerExecutor(link: String): ServerExecutor {
+    val url = URL(link)
+    return serverExecutors.computeIfAbsent("${url.protocol}://${url.authority}") { ServerExecutor() }
+  }
+
+  /**
+   * Runs tasks on the IO pool with at most [maxParallelRequests] of them running at a time
+   *
+   * The limit is read every time a task is dispatched, so a changed setting applies to the queued tasks without creating another pool.
+   */
+  private class ServerExecutor : Executor {
+    private val queue = ArrayDeque<Runnable>()
+    private var running = 0
+
+    override fun execute(command: Runnable) {
+      synchronized(this) { queue.add(command) }
+      dispatch()
+    }
+
+    private fun dispatch() {
+      while (true) {
+        val task = synchronized(this) {
+          if (queue.isEmpty() || running >= maxParallelRequests) return
+          running++
+          queue.poll()
+        }
+        ProcessIOExecutorService.INSTANCE.execute {
+          try {
+            task.run()
+          }
+          finally {
+            synchronized(this) { running-- }
+            dispatch()
+          }
+        }
+      }
+    }
+  }
+}
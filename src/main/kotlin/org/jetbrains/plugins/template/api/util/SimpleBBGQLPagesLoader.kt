@@ -2,6 +2,7 @@
 package org.jetbrains.plugins.template.api.util
 
 import com.intellij.openapi.progress.ProgressIndicator
+import org.jetbrains.plugins.template.api.BBGQLRequestBatcher
 import org.jetbrains.plugins.template.api.BitbucketApiRequest
 import org.jetbrains.plugins.template.api.BitbucketApiRequestExecutor
 import org.jetbrains.plugins.template.api.data.graphql.BBGQLPagedRequestResponse
@@ -12,8 +13,9 @@ import org.jetbrains.plugins.template.api.data.request.BitbucketRequestPaginatio
 class SimpleBBGQLPagesLoader<T>(executor: BitbucketApiRequestExecutor,
                                 requestProducer: (BBGQLRequestPagination) -> BitbucketApiRequest.Post<BBGQLPagedRequestResponse<T>>,
                                 supportsTimestampUpdates: Boolean = false,
-                                pageSize: Int = BitbucketRequestPagination.DEFAULT_PAGE_SIZE)
-  : BBGQLPagesLoader<BBGQLPagedRequestResponse<T>, List<T>>(executor, requestProducer, supportsTimestampUpdates, pageSize) {
+                                pageSize: Int = BitbucketRequestPagination.DEFAULT_PAGE_SIZE,
+                                batcher: BBGQLRequestBatcher? = null)
+  : BBGQLPagesLoader<BBGQLPagedRequestResponse<T>, List<T>>(executor, requestProducer, supportsTimestampUpdates, pageSize, batcher) {
 
   fun loadAll(progressIndicator: ProgressIndicator): List<T> {
     val list = mutableListOf<T>()
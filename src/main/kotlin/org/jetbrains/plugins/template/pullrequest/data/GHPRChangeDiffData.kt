@@ -3,17 +3,19 @@ package org.jetbrains.plugins.template.pullrequest.data
 
 import com.intellij.diff.util.Range
 import com.intellij.diff.util.Side
-import com.intellij.openapi.diff.impl.patch.TextFilePatch
+import org.jetbrains.plugins.template.util.BBPatchHunkUtil
+import org.jetbrains.plugins.template.util.BBPatchHunks
+import org.jetbrains.plugins.template.util.BBPatchReader
 
 sealed class GHPRChangeDiffData(val commitSha: String, val filePath: String,
-                                private val patch: TextFilePatch, private val cumulativePatch: TextFilePatch,
+                                private val patch: BBPatchHunks, private val cumulativePatch: BBPatchHunks,
                                 protected val fileHistory: FileHistory) {
 
   val diffRanges: List<Range> by lazy(LazyThreadSafetyMode.NONE) {
-    patch.hunks.map(GHPatchHunkUtil::getRange)
+    (0 until patch.hunkCount).map { BBPatchHunkUtil.getRange(patch, it) }
   }
   val diffRangesWithoutContext: List<Range> by lazy(LazyThreadSafetyMode.NONE) {
-    patch.hunks.map(GHPatchHunkUtil::getChangeOnlyRanges).flatten()
+    (0 until patch.hunkCount).flatMap { BBPatchHunkUtil.getChangeOnlyRanges(patch, it) }
   }
   val linesMapper: GHPRChangedFileLinesMapper by lazy(LazyThreadSafetyMode.NONE) {
     GHPRChangedFileLinesMapperImpl(cumulativePatch)
@@ -27,11 +29,11 @@ sealed class GHPRChangeDiffData(val commitSha: String, val filePath: String,
     private val history: MutableMap<String, Entry>
 
     val initialFilePath: String?
-      get() = (history.values.find { it.patch != null }?.patch ?: error("Empty history")).beforeName
+      get() = (history.values.find { it.section != null }?.section ?: error("Empty history")).beforeName
 
     val filePath: String?
       get() {
-        val lastFilePath = (history.values.findLast { it.patch != null }?.patch ?: error("Empty history")).afterName
+        val lastFilePath = (history.values.findLast { it.section != null }?.section ?: error("Empty history")).afterName
         return lastFilePath ?: initialFilePath
       }
 
@@ -42,10 +44,10 @@ sealed class GHPRChangeDiffData(val commitSha: String, val filePath: String,
       }
     }
 
-    fun append(commitSha: String, patch: TextFilePatch) {
+    fun append(commitSha: String, section: BBPatchReader.FileSection) {
       val entry = history[commitSha]
-      assert(entry != null && entry.patch == null)
-      history[commitSha] = Entry(patch)
+      assert(entry != null && entry.section == null)
+      history[commitSha] = Entry(section)
     }
 
     fun contains(commitSha: String, filePath: String): Boolean {
@@ -69,47 +71,50 @@ sealed class GHPRChangeDiffData(val commitSha: String, val filePath: String,
       error("Unknown commit sha")
     }
 
-    fun getPatches(fromCommit: String, toCommit: String, dropHead: Boolean, dropTail: Boolean): List<TextFilePatch> {
-      val patches = mutableListOf<TextFilePatch>()
+    /**
+     * Only the patches in the returned range are parsed
+     */
+    fun getPatches(fromCommit: String, toCommit: String, dropHead: Boolean, dropTail: Boolean): List<BBPatchHunks> {
+      val sections = mutableListOf<BBPatchReader.FileSection>()
 
       var foundFrom = false
-      var lastFound: TextFilePatch? = null
+      var lastFound: BBPatchReader.FileSection? = null
 
       for ((sha, entry) in history) {
 
         if (!foundFrom) {
-          if (entry.patch != null) lastFound = entry.patch
+          if (entry.section != null) lastFound = entry.section
 
           if (sha == fromCommit) {
             foundFrom = true
             if (!dropHead) {
-              val patchToAdd = entry.patch ?: lastFound
-                               ?: error("Original patch was not found")
-              patches.add(patchToAdd)
+              val sectionToAdd = entry.section ?: lastFound
+                                 ?: error("Original patch was not found")
+              sections.add(sectionToAdd)
             }
           }
         }
         else {
           if (dropTail) {
             if (sha == toCommit) break
-            entry.patch?.let { patches.add(it) }
+            entry.section?.let { sections.add(it) }
           }
           else {
-            entry.patch?.let { patches.add(it) }
+            entry.section?.let { sections.add(it) }
             if (sha == toCommit) break
           }
         }
       }
-      return patches
+      return sections.mapNotNull { it.hunks }
     }
 
-    private class Entry(val patch: TextFilePatch?) {
-      val filePath = patch?.filePath
+    private class Entry(val section: BBPatchReader.FileSection?) {
+      val filePath = section?.filePath
     }
   }
 
   class Commit(commitSha: String, filePath: String,
-               patch: TextFilePatch, cumulativePatch: TextFilePatch,
+               patch: BBPatchHunks, cumulativePatch: BBPatchHunks,
                fileHistory: FileHistory)
     : GHPRChangeDiffData(commitSha, filePath,
                          patch, cumulativePatch,
@@ -130,7 +135,7 @@ sealed class GHPRChangeDiffData(val commitSha: String, val filePath: String,
       }
     }
 
-    private fun transferLine(patchChain: List<TextFilePatch>, side: Side, line: Int, rightToLeft: Boolean): Pair<Side, Int>? {
+    private fun transferLine(patchChain: List<BBPatchHunks>, side: Side, line: Int, rightToLeft: Boolean): Pair<Side, Int>? {
       // points to the same patch
       if (patchChain.isEmpty()) return side to line
 
@@ -142,8 +147,8 @@ sealed class GHPRChangeDiffData(val commitSha: String, val filePath: String,
 
       for (patch in patches) {
         if (currentSide == transferFrom) {
-          val changeOnlyRanges = patch.hunks.map { hunk ->
-            val ranges = GHPatchHunkUtil.getChangeOnlyRanges(hunk)
+          val changeOnlyRanges = (0 until patch.hunkCount).map { hunk ->
+            val ranges = BBPatchHunkUtil.getChangeOnlyRanges(patch, hunk)
             if (rightToLeft) ranges.map { reverseRange(it) } else ranges
           }.flatten()
 
@@ -171,14 +176,9 @@ sealed class GHPRChangeDiffData(val commitSha: String, val filePath: String,
   }
 
   class Cumulative(commitSha: String, filePath: String,
-                   patch: TextFilePatch,
+                   patch: BBPatchHunks,
                    fileHistory: FileHistory)
     : GHPRChangeDiffData(commitSha, filePath,
                          patch, patch,
                          fileHistory)
-
-  companion object {
-    private val TextFilePatch.filePath
-      get() = (afterName ?: beforeName)!!
-  }
 }
\ No newline at end of file
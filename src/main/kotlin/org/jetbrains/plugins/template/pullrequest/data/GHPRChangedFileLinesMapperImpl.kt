@@ -2,22 +2,22 @@
 package org.jetbrains.plugins.template.pullrequest.data
 
 import com.intellij.diff.util.Side
-import com.intellij.openapi.diff.impl.patch.PatchHunk
-import com.intellij.openapi.diff.impl.patch.TextFilePatch
+import org.jetbrains.plugins.template.util.BBPatchHunkUtil
+import org.jetbrains.plugins.template.util.BBPatchHunks
 
-class GHPRChangedFileLinesMapperImpl(private val diff: TextFilePatch) : GHPRChangedFileLinesMapper {
+class GHPRChangedFileLinesMapperImpl(private val diff: BBPatchHunks) : GHPRChangedFileLinesMapper {
 
   override fun findDiffLine(side: Side, fileLineIndex: Int): Int? {
     val (hunk, offset) = findHunkWithOffset(side, fileLineIndex) ?: return null
-    val hunkLineIndex = GHPatchHunkUtil.findHunkLineIndexFromFileSideLineIndex(hunk, side, fileLineIndex) ?: return null
+    val hunkLineIndex = BBPatchHunkUtil.findHunkLineIndexFromFileSideLineIndex(diff, hunk, side, fileLineIndex) ?: return null
 
     return offset + hunkLineIndex
   }
 
-  private fun findHunkWithOffset(side: Side, fileLineIndex: Int): Pair<PatchHunk, Int>? {
+  private fun findHunkWithOffset(side: Side, fileLineIndex: Int): Pair<Int, Int>? {
     var diffLineCounter = 0
-    for (hunk in diff.hunks) {
-      val range = GHPatchHunkUtil.getRange(hunk)
+    for (hunk in 0 until diff.hunkCount) {
+      val range = BBPatchHunkUtil.getRange(diff, hunk)
       val start = side.select(range.start1, range.start2)
       val end = side.select(range.end1, range.end2)
 
@@ -25,7 +25,7 @@ class GHPRChangedFileLinesMapperImpl(private val diff: TextFilePatch) : GHPRChan
         return hunk to diffLineCounter
       }
 
-      val hunkLinesCount = GHPatchHunkUtil.getHunkLinesCount(hunk)
+      val hunkLinesCount = BBPatchHunkUtil.getHunkLinesCount(diff, hunk)
       diffLineCounter += hunkLinesCount
     }
     return null
@@ -37,13 +37,13 @@ class GHPRChangedFileLinesMapperImpl(private val diff: TextFilePatch) : GHPRChan
     val hunkLineIndex = diffLineIndex - offset
     if (hunkLineIndex == 0) return null
 
-    return GHPatchHunkUtil.findSideFileLineFromHunkLineIndex(hunk, hunkLineIndex)
+    return BBPatchHunkUtil.findSideFileLineFromHunkLineIndex(diff, hunk, hunkLineIndex)
   }
 
-  private fun findHunkWithOffset(diffLineIndex: Int): Pair<PatchHunk, Int>? {
+  private fun findHunkWithOffset(diffLineIndex: Int): Pair<Int, Int>? {
     var diffLineCounter = 0
-    for (hunk in diff.hunks) {
-      val hunkLinesCount = GHPatchHunkUtil.getHunkLinesCount(hunk)
+    for (hunk in 0 until diff.hunkCount) {
+      val hunkLinesCount = BBPatchHunkUtil.getHunkLinesCount(diff, hunk)
       diffLineCounter += hunkLinesCount
 
       if (diffLineIndex < diffLineCounter) {
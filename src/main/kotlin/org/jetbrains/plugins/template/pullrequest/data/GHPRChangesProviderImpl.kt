@@ -2,10 +2,6 @@
 package org.jetbrains.plugins.template.pullrequest.data
 
 import com.intellij.openapi.diagnostic.logger
-import com.intellij.openapi.diff.impl.patch.FilePatch
-import com.intellij.openapi.diff.impl.patch.PatchReader
-import com.intellij.openapi.diff.impl.patch.TextFilePatch
-import com.intellij.openapi.vcs.FilePath
 import com.intellij.openapi.vcs.changes.Change
 import com.intellij.vcsUtil.VcsUtil
 import git4idea.GitContentRevision
@@ -13,18 +9,20 @@ import git4idea.GitRevisionNumber
 import git4idea.repo.GitRepository
 import gnu.trove.THashMap
 import gnu.trove.TObjectHashingStrategy
+import org.jetbrains.plugins.template.util.BBPatchReader
 import java.util.*
 import kotlin.collections.LinkedHashMap
 
 class GHPRChangesProviderImpl(private val repository: GitRepository,
                               mergeBaseRef: String,
-                              commitsWithDiffs: List<Triple<GHCommit, String, String>>)
+                              commitsWithDiffs: List<Pair<GHCommit, CharSequence>>,
+                              diffFromMergeBase: CharSequence)
   : GHPRChangesProvider {
 
   override val changes: List<Change>
   override val changesByCommits: Map<GHCommit, List<Change>>
 
-  private val diffDataByChange: Map<Change, GHPRChangeDiffData>
+  private val diffDataByChange: Map<Change, Lazy<GHPRChangeDiffData?>>
 
   init {
     changesByCommits = LinkedHashMap()
@@ -39,46 +37,48 @@ class GHPRChangesProviderImpl(private val repository: GitRepository,
     val fileHistoriesByLastKnownFilePath = mutableMapOf<String, GHPRChangeDiffData.FileHistory>()
 
     var lastCommitSha = mergeBaseRef
-    var lastCumulativePatches: List<FilePatch>? = null
+    val cumulativePatchComposer = GHPRCumulativePatchComposer()
+    // hunks are parsed when the diff data of a change is requested
+    val headSections = readAllSections(diffFromMergeBase)
+    val headPatchesByFilePath = headSections.associate { it.filePath to lazy { it.hunks } }
 
     val commitsHashes = commitsWithDiffs.map { it.first.oid }
-    for ((commit, commitDiff, diffFromMergeBase) in commitsWithDiffs) {
+    for ((index, commitWithDiff) in commitsWithDiffs.withIndex()) {
+      val (commit, commitDiff) = commitWithDiff
 
       val commitSha = commit.oid
       val commitChanges = mutableListOf<Change>()
-      val commitPatches = readAllPatches(commitDiff)
+      val commitSections = readAllSections(commitDiff)
 
-      val cumulativePatches = readAllPatches(diffFromMergeBase)
+      // review comments on the head are positioned in the diff computed by git, so it is used as is and not composed
+      val cumulativePatches = if (index == commitsWithDiffs.lastIndex) headPatchesByFilePath
+      else cumulativePatchComposer.append(commitSections)
 
-      for (patch in commitPatches) {
-        val change = createChangeFromPatch(lastCommitSha, commitSha, patch)
+      for (section in commitSections) {
+        val change = createChange(lastCommitSha, commitSha, section)
         commitChanges.add(change)
 
-        if (patch is TextFilePatch) {
-          val beforePath = patch.beforeName
-          val afterPath = patch.afterName
-
-          val historyBefore = beforePath?.let { fileHistoriesByLastKnownFilePath.remove(it) }
-          val fileHistory = (historyBefore ?: GHPRChangeDiffData.FileHistory(commitsHashes)).apply {
-            append(commitSha, patch)
-          }
-          fileHistoriesByLastKnownFilePath[afterPath] = fileHistory
-          val initialPath = fileHistory.initialFilePath
+        val historyBefore = section.beforeName?.let { fileHistoriesByLastKnownFilePath.remove(it) }
+        val fileHistory = (historyBefore ?: GHPRChangeDiffData.FileHistory(commitsHashes)).apply {
+          append(commitSha, section)
+        }
+        fileHistoriesByLastKnownFilePath[section.filePath] = fileHistory
+        val cumulativePatch = cumulativePatches[section.afterName ?: fileHistory.initialFilePath]
 
-          val cumulativePatch = findPatchByFilePaths(cumulativePatches, initialPath, afterPath) as? TextFilePatch
-          if (cumulativePatch == null) {
+        diffDataByChange[change] = lazy {
+          val patch = section.hunks ?: return@lazy null
+          val cumulative = cumulativePatch?.value
+          if (cumulative == null) {
             LOG.debug("Unable to find cumulative patch for commit patch")
-            continue
+            return@lazy null
           }
-
-          diffDataByChange[change] = GHPRChangeDiffData.Commit(commitSha, patch.filePath,
-                                                               patch, cumulativePatch,
-                                                               fileHistory)
+          GHPRChangeDiffData.Commit(commitSha, section.filePath,
+                                    patch, cumulative,
+                                    fileHistory)
         }
       }
       changesByCommits[commit] = commitChanges
       lastCommitSha = commitSha
-      lastCumulativePatches = cumulativePatches
     }
 
     changes = mutableListOf()
@@ -87,57 +87,41 @@ class GHPRChangesProviderImpl(private val repository: GitRepository,
       it.value.filePath
     }
 
-    lastCumulativePatches?.let {
-      for (patch in it) {
-        val change = createChangeFromPatch(mergeBaseRef, lastCommitSha, patch)
+    if (commitsWithDiffs.isNotEmpty()) {
+      val headSha = lastCommitSha
+      for (section in headSections) {
+        val change = createChange(mergeBaseRef, headSha, section)
         changes.add(change)
 
-        if (patch is TextFilePatch) {
-          val filePath = patch.filePath
-          val fileHistory = fileHistoriesBySummaryFilePath[filePath]
-          if (fileHistory == null) {
-            LOG.debug("Unable to find file history for cumulative patch for $filePath")
-            continue
-          }
+        val filePath = section.filePath
+        val fileHistory = fileHistoriesBySummaryFilePath[filePath]
+        if (fileHistory == null) {
+          LOG.debug("Unable to find file history for cumulative patch for $filePath")
+          continue
+        }
 
-          diffDataByChange[change] = GHPRChangeDiffData.Cumulative(lastCommitSha, filePath,
-                                                                   patch, fileHistory)
+        diffDataByChange[change] = lazy {
+          section.hunks?.let { GHPRChangeDiffData.Cumulative(headSha, filePath, it, fileHistory) }
         }
       }
     }
   }
 
-  private fun createChangeFromPatch(beforeRef: String, afterRef: String, patch: FilePatch): Change {
+  private fun createChange(beforeRef: String, afterRef: String, section: BBPatchReader.FileSection): Change {
     val project = repository.project
-    val (beforePath, afterPath) = getPatchPaths(patch)
+    val beforePath = section.beforeName?.let { VcsUtil.getFilePath(repository.root, it) }
+    val afterPath = section.afterName?.let { VcsUtil.getFilePath(repository.root, it) }
     val beforeRevision = beforePath?.let { GitContentRevision.createRevision(it, GitRevisionNumber(beforeRef), project) }
     val afterRevision = afterPath?.let { GitContentRevision.createRevision(it, GitRevisionNumber(afterRef), project) }
 
     return Change(beforeRevision, afterRevision)
   }
 
-  private fun getPatchPaths(patch: FilePatch): Pair<FilePath?, FilePath?> {
-    val beforeName = if (patch.isNewFile) null else patch.beforeName
-    val afterName = if (patch.isDeletedFile) null else patch.afterName
-
-    return beforeName?.let { VcsUtil.getFilePath(repository.root, it) } to afterName?.let { VcsUtil.getFilePath(repository.root, it) }
-  }
-
-  private fun findPatchByFilePaths(patches: Collection<FilePatch>, beforePath: String?, afterPath: String?): FilePatch? =
-    patches.find { (afterPath != null && it.afterName == afterPath) || (afterPath == null && it.beforeName == beforePath) }
-
-  override fun findChangeDiffData(change: Change) = diffDataByChange[change]
+  override fun findChangeDiffData(change: Change) = diffDataByChange[change]?.value
 
   companion object {
     private val LOG = logger<GHPRChangesProvider>()
 
-    private val TextFilePatch.filePath
-      get() = (afterName ?: beforeName)!!
-
-    private fun readAllPatches(diffFile: String): List<FilePatch> {
-      val reader = PatchReader(diffFile, true)
-      reader.parseAllPatches()
-      return reader.allPatches
-    }
+    private fun readAllSections(diffFile: CharSequence) = BBPatchReader.readAllSections(diffFile)
   }
 }
\ No newline at end of file
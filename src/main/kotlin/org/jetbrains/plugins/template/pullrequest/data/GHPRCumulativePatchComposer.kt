@@ -0,0 +1,295 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.pullrequest.data
+
+import com.intellij.openapi.diff.impl.patch.PatchLine
+import org.jetbrains.plugins.template.util.BBPatchHunks
+import org.jetbrains.plugins.template.util.BBPatchReader
+
+/**
+ * Derives cumulative patches (from the merge base to a commit) from the previous cumulative patches and the patches of the commit,
+ * so a diff from the merge base does not have to be loaded for every commit
+ *
+ * Files are tracked by their last known path, so renames are composed into a single patch from the initial path
+ * to the last one, like the ones [GHPRChangeDiffData.FileHistory] is built for.
+ * Paths are taken from the file headers and the patches are only parsed and composed when a cumulative patch is requested.
+ *
+ * Composed hunks follow git layout, i.e. [CONTEXT_SIZE] lines of context and hunks joined when there are
+ * at most 2 * [CONTEXT_SIZE] unchanged lines between the changes. Context is only known near the changed lines, so it can be shorter
+ * than in the diff computed by git when the file content around the change is not present in any of the source patches.
+ * That's why the diff from the merge base to the head is still loaded and used as is for the review comment positions on the head.
+ */
+class GHPRCumulativePatchComposer {
+  private val patchesByFilePath = LinkedHashMap<String, CumulativePatch>()
+
+  /**
+   * @param commitSections file diffs of the next commit
+   * @return cumulative patches after the commit by the file path, null for binary files
+   */
+  fun append(commitSections: List<BBPatchReader.FileSection>): Map<String, Lazy<BBPatchHunks?>> {
+    // paths can be reused within a commit, so all sources are detached before anything is put back
+    val previousPatches = commitSections.map { section -> section.beforeName?.let { patchesByFilePath.remove(it) } }
+
+    sections@ for ((index, section) in commitSections.withIndex()) {
+      val previousPatch = previousPatches[index] ?: if (section.beforeName == null) findDeletedPatch(section.filePath) else null
+
+      val cumulativePatch = when {
+        previousPatch == null -> CumulativePatch(section.beforeName, section.afterName, section.filePath, lazy { section.hunks })
+        previousPatch.beforeName == null && section.afterName == null -> continue@sections
+        else -> CumulativePatch(previousPatch.beforeName, section.afterName, section.filePath, lazy {
+          // binary content can't be composed, so the last known change is shown
+          val hunks = section.hunks ?: return@lazy null
+          val previous = previousPatch.hunks.value
+          if (previous == null) hunks else compose(previous, hunks)
+        })
+      }
+      patchesByFilePath[cumulativePatch.filePath] = cumulativePatch
+    }
+    return patchesByFilePath.mapValues { it.value.hunks }
+  }
+
+  /**
+   * Deleted file is added back either at its initial path or at the path it was deleted from
+   */
+  private fun findDeletedPatch(filePath: String): CumulativePatch? {
+    val key = filePath.takeIf { patchesByFilePath[it]?.afterName == null && patchesByFilePath.containsKey(it) }
+              ?: patchesByFilePath.entries.find { it.value.afterName == null && it.value.lastFilePath == filePath }?.key
+    return key?.let { patchesByFilePath.remove(it) }
+  }
+
+  companion object {
+    const val CONTEXT_SIZE = 3
+
+    /**
+     * @param hunks hunks of the patch from the base revision to an intermediate one
+     * @param nextHunks hunks of the patch from the intermediate revision to the target one
+     * @return hunks of the patch from the base revision to the target one
+     */
+    fun compose(hunks: BBPatchHunks, nextHunks: BBPatchHunks): BBPatchHunks {
+      val changes = parse(hunks)
+      val nextChanges = parse(nextHunks)
+      val context = HashMap(changes.context)
+      val blocks = composeBlocks(changes, nextChanges, context)
+      // context of the first patch can be changed by the next one
+      for (block in blocks) {
+        for (line in block.start1 until block.end1) context.remove(line)
+      }
+      return createHunks(blocks, context)
+    }
+
+    /**
+     * Changes of both patches are projected to the intermediate revision,
+     * changes which overlap or touch there are merged to a single change of the composed patch
+     */
+    private fun composeBlocks(changes: Changes, nextChanges: Changes, context: MutableMap<Int, Line>): List<Block> {
+      val blocks = changes.blocks
+      val nextBlocks = nextChanges.blocks
+      val result = mutableListOf<Block>()
+
+      var index = 0
+      var nextIndex = 0
+      // (intermediate line - base line) and (target line - intermediate line) for unchanged lines before the current group
+      var delta = 0
+      var nextDelta = 0
+      var nextContextIndex = 0
+      val nextContext = nextChanges.context.entries.sortedBy { it.key }
+
+      while (index < blocks.size || nextIndex < nextBlocks.size) {
+        val groupStart = minOf(blocks.getOrNull(index)?.start2 ?: Int.MAX_VALUE, nextBlocks.getOrNull(nextIndex)?.start1 ?: Int.MAX_VALUE)
+
+        // context of the next patch before the group is unchanged since the base revision
+        while (nextContextIndex < nextContext.size && nextContext[nextContextIndex].key < groupStart) {
+          val (line, content) = nextContext[nextContextIndex++]
+          context[line - delta] = content
+        }
+
+        val group = mutableListOf<Block>()
+        val nextGroup = mutableListOf<Block>()
+        var groupEnd = groupStart
+        while (true) {
+          val block = blocks.getOrNull(index)
+          val nextBlock = nextBlocks.getOrNull(nextIndex)
+          if (block != null && block.start2 <= groupEnd) {
+            group.add(block)
+            groupEnd = maxOf(groupEnd, block.end2)
+            index++
+          }
+          else if (nextBlock != null && nextBlock.start1 <= groupEnd) {
+            nextGroup.add(nextBlock)
+            groupEnd = maxOf(groupEnd, nextBlock.end1)
+            nextIndex++
+          }
+          else break
+        }
+        // skip the context which is inside the group
+        while (nextContextIndex < nextContext.size && nextContext[nextContextIndex].key < groupEnd) nextContextIndex++
+
+        // every intermediate line of the group is added by the first patch, removed by the next one or both
+        val removed = mutableListOf<Line>()
+        var line = groupStart
+        for (block in group) {
+          while (line < block.start2) removed.add(nextGroup.getIntermediateLine(line++, false))
+          removed.addAll(block.removed)
+          line = block.end2
+        }
+        while (line < groupEnd) removed.add(nextGroup.getIntermediateLine(line++, false))
+
+        val added = mutableListOf<Line>()
+        line = groupStart
+        for (block in nextGroup) {
+          while (line < block.start1) added.add(group.getIntermediateLine(line++, true))
+          added.addAll(block.added)
+          line = block.end1
+        }
+        while (line < groupEnd) added.add(group.getIntermediateLine(line++, true))
+
+        trimUnchangedLines(Block(groupStart - delta, groupStart + nextDelta, removed, added), context)?.let(result::add)
+
+        delta += group.sumBy { it.added.size - it.removed.size }
+        nextDelta += nextGroup.sumBy { it.added.size - it.removed.size }
+      }
+      while (nextContextIndex < nextContext.size) {
+        val (line, content) = nextContext[nextContextIndex++]
+        context[line - delta] = content
+      }
+      return result
+    }
+
+    private fun List<Block>.getIntermediateLine(line: Int, added: Boolean): Line {
+      val block = first { if (added) line in it.start2 until it.end2 else line in it.start1 until it.end1 }
+      return if (added) block.added[line - block.start2] else block.removed[line - block.start1]
+    }
+
+    /**
+     * Lines the change reverts are moved to the context, so the change is the same as the one computed by diff
+     */
+    private fun trimUnchangedLines(block: Block, context: MutableMap<Int, Line>): Block? {
+      val removed = block.removed
+      val added = block.added
+      var prefix = 0
+      while (prefix < removed.size && prefix < added.size && removed[prefix] == added[prefix]) {
+        context[block.start1 + prefix] = removed[prefix]
+        prefix++
+      }
+      var suffix = 0
+      while (suffix < removed.size - prefix && suffix < added.size - prefix &&
+             removed[removed.size - suffix - 1] == added[added.size - suffix - 1]) {
+        context[block.start1 + removed.size - suffix - 1] = removed[removed.size - suffix - 1]
+        suffix++
+      }
+      if (prefix == removed.size && prefix == added.size) return null
+      return Block(block.start1 + prefix, block.start2 + prefix,
+                   removed.subList(prefix, removed.size - suffix), added.subList(prefix, added.size - suffix))
+    }
+
+    private fun createHunks(blocks: List<Block>, context: Map<Int, Line>): BBPatchHunks {
+      val builder = BBPatchHunks.Builder()
+      var index = 0
+      var previousHunkEnd = 0
+      while (index < blocks.size) {
+        val first = blocks[index]
+        var contextStart = first.start1
+        while (first.start1 - contextStart < CONTEXT_SIZE && contextStart > previousHunkEnd && context.containsKey(contextStart - 1)) {
+          contextStart--
+        }
+
+        val lines = mutableListOf<Pair<PatchLine.Type, Line>>()
+        for (line in contextStart until first.start1) lines.add(PatchLine.Type.CONTEXT to context.getValue(line))
+
+        var block = first
+        while (true) {
+          block.removed.mapTo(lines) { PatchLine.Type.REMOVE to it }
+          block.added.mapTo(lines) { PatchLine.Type.ADD to it }
+          index++
+
+          val next = blocks.getOrNull(index)
+          if (next != null && next.start1 - block.end1 <= 2 * CONTEXT_SIZE && (block.end1 until next.start1).all(context::containsKey)) {
+            for (line in block.end1 until next.start1) lines.add(PatchLine.Type.CONTEXT to context.getValue(line))
+            block = next
+            continue
+          }
+          var line = block.end1
+          while (line - block.end1 < CONTEXT_SIZE && context.containsKey(line)) lines.add(PatchLine.Type.CONTEXT to context.getValue(line++))
+          previousHunkEnd = line
+          break
+        }
+
+        val beforeCount = lines.count { it.first != PatchLine.Type.ADD }
+        val afterCount = lines.count { it.first != PatchLine.Type.REMOVE }
+        builder.startHunk(getHunkStart(contextStart, beforeCount), getHunkStart(contextStart + first.start2 - first.start1, afterCount))
+        for ((type, line) in lines) builder.addLine(type, line.text, line.suppressNewLine)
+      }
+      return builder.build()
+    }
+
+    private fun parse(hunks: BBPatchHunks): Changes {
+      val blocks = mutableListOf<Block>()
+      val context = mutableMapOf<Int, Line>()
+      for (hunk in 0 until hunks.hunkCount) {
+        val hunkLines = hunks.getLines(hunk)
+        var line1 = getFileLine(hunks.getStartLineBefore(hunk), hunkLines.count { hunks.getLineType(it) != PatchLine.Type.ADD })
+        var line2 = getFileLine(hunks.getStartLineAfter(hunk), hunkLines.count { hunks.getLineType(it) != PatchLine.Type.REMOVE })
+        var removed = mutableListOf<Line>()
+        var added = mutableListOf<Line>()
+
+        fun flush() {
+          if (removed.isEmpty() && added.isEmpty()) return
+          blocks.add(Block(line1, line2, removed, added))
+          line1 += removed.size
+          line2 += added.size
+          removed = mutableListOf()
+          added = mutableListOf()
+        }
+
+        for (hunkLine in hunkLines) {
+          val line = Line(hunks.getLineText(hunkLine).toString(), hunks.isSuppressNewLine(hunkLine))
+          when (hunks.getLineType(hunkLine)) {
+            PatchLine.Type.REMOVE -> removed.add(line)
+            PatchLine.Type.ADD -> added.add(line)
+            PatchLine.Type.CONTEXT -> {
+              flush()
+              context[line1++] = line
+              line2++
+            }
+          }
+        }
+        flush()
+      }
+      return Changes(blocks, context)
+    }
+
+    /**
+     * Hunk header points to the line before the hunk when the side is empty and [com.intellij.openapi.diff.impl.patch.PatchReader]
+     * subtracts one from the header value in any case
+     */
+    private fun getFileLine(hunkStart: Int, count: Int) = if (count == 0) hunkStart + 1 else hunkStart
+
+    private fun getHunkStart(fileLine: Int, count: Int) = if (count == 0) fileLine - 1 else fileLine
+  }
+
+  /**
+   * @param lastFilePath path of the file in the last commit which changed it, for a deleted file it's the path it was deleted from
+   */
+  private class CumulativePatch(val beforeName: String?, val afterName: String?, val lastFilePath: String,
+                                val hunks: Lazy<BBPatchHunks?>) {
+    val filePath: String
+      get() = (afterName ?: beforeName)!!
+  }
+
+  /**
+   * Text line of a file, lines differing only by the trailing newline are different
+   */
+  private data class Line(val text: String, val suppressNewLine: Boolean)
+
+  /**
+   * Lines [start1, end1) of the left side replaced with lines [start2, end2) of the right side
+   */
+  private class Block(val start1: Int, val start2: Int, val removed: List<Line>, val added: List<Line>) {
+    val end1 = start1 + removed.size
+    val end2 = start2 + added.size
+  }
+
+  /**
+   * @param context unchanged lines by the line number on the left side
+   */
+  private class Changes(val blocks: List<Block>, val context: Map<Int, Line>)
+}
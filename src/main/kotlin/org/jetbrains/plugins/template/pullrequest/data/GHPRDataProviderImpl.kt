@@ -7,11 +7,14 @@ import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.progress.ProgressIndicator
 import com.intellij.openapi.progress.ProgressManager
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.ClearableLazyValue
 import com.intellij.util.EventDispatcher
 import git4idea.commands.Git
 import git4idea.fetch.GitFetchSupport
 import git4idea.history.GitHistoryUtils
 import org.jetbrains.annotations.CalledInAwt
+import org.jetbrains.plugins.template.api.BBGQLRequestBatcher
+import org.jetbrains.plugins.template.api.util.BitbucketApiParallelExecutor
 
 
 
@@ -20,6 +23,8 @@ import org.jetbrains.annotations.CalledInAwt
 import java.util.concurrent.CancellationException
 import java.util.concurrent.CompletableFuture
 import java.util.concurrent.CompletionException
+import java.util.function.BiFunction
+import java.util.function.Function
 import kotlin.properties.ReadOnlyProperty
 import kotlin.reflect.KProperty
 
@@ -35,14 +40,16 @@ internal class GHPRDataProviderImpl(private val project: Project,
 
   private val requestsChangesEventDispatcher = EventDispatcher.create(GHPRDataProvider.RequestsChangedListener::class.java)
 
+  // details, mergeability and first pages of review threads and timeline are requested together when the pull request is opened
+  private val gqlBatcher = BBGQLRequestBatcher(requestExecutor)
+
   private var lastKnownBaseBranch: String? = null
   private var lastKnownBaseSha: String? = null
   private var lastKnownHeadSha: String? = null
 
-  private val detailsRequestValue: LazyCancellableBackgroundProcessValue<GHPullRequest> = backingValue {
-    val details = requestExecutor.execute(it, GHGQLRequests.PullRequest.findOne(repository, number))
-                  ?: throw GHNotFoundException("Pull request $number does not exist")
-    invokeAndWaitIfNeeded {
+  private val detailsRequestValue: LazyCancellableAsyncValue<GHPullRequest> = asyncValue { indicator ->
+    gqlBatcher.executeAsync(indicator, GHGQLRequests.PullRequest.findOne(repository, number)).thenApplyAsync(Function {
+      val details = it ?: throw GHNotFoundException("Pull request $number does not exist")
 
       var baseBranchChanged = false
       lastKnownBaseBranch?.run { if (this != details.baseRefName) baseBranchChanged = true }
@@ -61,8 +68,8 @@ internal class GHPRDataProviderImpl(private val project: Project,
         reloadChanges()
         reloadMergeabilityState()
       }
-    }
-    details
+      details
+    }, EDT_EXECUTOR)
   }
   override val detailsRequest by backgroundProcessValue(detailsRequestValue)
 
@@ -97,14 +104,9 @@ internal class GHPRDataProviderImpl(private val project: Project,
     val details = detailsRequest.joinCancellable()
     val commits: List<GHCommit> = commitsRequest.joinCancellable()
 
-    val commitsWithDiffs = commits.map { commit ->
-      val commitDiff = requestExecutor.execute(it,
-                                               GithubApiRequests.Repos.Commits.getDiff(repository, commit.oid))
-
-      val cumulativeDiff = requestExecutor.execute(it,
-                                                   GithubApiRequests.Repos.Commits.getDiff(repository, details.baseRefOid, commit.oid))
-      Triple(commit, commitDiff, cumulativeDiff)
-    }
+    // local diffs need the fetched objects, server diffs are loaded while fetching
+    val useLocalDiffs = GithubSettings.getInstance().isUseLocalPullRequestDiffs
+    val serverDiffs = if (!useLocalDiffs) loadServerDiffs(it, details.baseRefOid, details.headRefOid, commits) else null
 
     //TODO: ??? move to diff and load merge base via API
     baseFetch.joinCancellable()
@@ -114,43 +116,68 @@ internal class GHPRDataProviderImpl(private val project: Project,
       GitHistoryUtils.getMergeBase(project, gitRemote.repository.root, details.baseRefOid, details.headRefOid)?.rev
       ?: error("Could not calculate merge base for PR branch")
 
-    GHPRChangesProviderImpl(gitRemote.repository, mergeBaseRev, commitsWithDiffs)
+    val (commitsWithDiffs, diffFromMergeBase) = serverDiffs
+                                                ?: loadLocalDiffs(it, mergeBaseRev, details.headRefOid, commits)
+                                                ?: loadServerDiffs(it, details.baseRefOid, details.headRefOid, commits)
+
+    GHPRChangesProviderImpl(gitRemote.repository, mergeBaseRev, commitsWithDiffs, diffFromMergeBase)
   }
   override val changesProviderRequest: CompletableFuture<out GHPRChangesProvider> by backgroundProcessValue(changesProviderValue)
 
+  /**
+   * @return diffs of every commit and the diff of the head from the merge base,
+   * cumulative diffs of intermediate commits are composed from them by [GHPRCumulativePatchComposer]
+   */
+  private fun loadServerDiffs(indicator: ProgressIndicator, baseRefOid: String, headRefOid: String, commits: List<GHCommit>)
+    : Pair<List<Pair<GHCommit, CharSequence>>, CharSequence> {
+    // diffs are loaded concurrently and come back in commit order
+    val diffRequests = commits.map { GithubApiRequests.Repos.Commits.getDiff(repository, it.oid) } +
+                       GithubApiRequests.Repos.Commits.getDiff(repository, baseRefOid, headRefOid)
+    val diffs = BitbucketApiParallelExecutor.executeAll(requestExecutor, indicator, diffRequests)
+    return commits.zip(diffs) to diffs.last()
+  }
+
+  private fun loadLocalDiffs(indicator: ProgressIndicator, mergeBaseRev: String, headRefOid: String, commits: List<GHCommit>)
+    : Pair<List<Pair<GHCommit, CharSequence>>, CharSequence>? {
+    val (commitDiffs, diffFromMergeBase) = GHPRLocalDiffsLoader(gitRemote.repository)
+                                             .loadDiffs(indicator, mergeBaseRev, headRefOid, commits.map { it.oid }) ?: return null
+    return commits.zip(commitDiffs) to diffFromMergeBase
+  }
+
   private val reviewThreadsRequestValue = backingValue {
     SimpleGHGQLPagesLoader(requestExecutor, { p ->
       GHGQLRequests.PullRequest.reviewThreads(repository, number, p)
-    }).loadAll(it)
+    }, batcher = gqlBatcher).loadAll(it)
   }
   override val reviewThreadsRequest: CompletableFuture<List<GHPullRequestReviewThread>> by backgroundProcessValue(reviewThreadsRequestValue)
 
-  private val baseBranchProtectionRulesRequestValue = backingValue {
-    if (!securityService.currentUserHasPermissionLevel(GHRepositoryPermissionLevel.WRITE)) return@backingValue null
+  private val baseBranchProtectionRulesRequestValue = asyncValue { indicator ->
+    if (!securityService.currentUserHasPermissionLevel(GHRepositoryPermissionLevel.WRITE))
+      return@asyncValue CompletableFuture.completedFuture<GHBranchProtectionRules?>(null)
 
-    val detailsRequest = detailsRequestValue.value
-    val baseBranch = detailsRequest.joinCancellable().baseRefName
-    try {
-      requestExecutor.execute(GithubApiRequests.Repos.Branches.getProtection(repository, baseBranch))
-    }
-    catch (e: GithubStatusCodeException) {
-      if (e.statusCode == 404) null
-      else throw e
+    detailsRequestValue.value.thenCompose { details ->
+      requestExecutor.executeAsync(indicator, GithubApiRequests.Repos.Branches.getProtection(repository, details.baseRefName))
+    }.exceptionally { error ->
+      val actualError = GithubAsyncUtil.extractError(error)
+      if (actualError is GithubStatusCodeException && actualError.statusCode == 404) null
+      else throw actualError
     }
   }
-  private val mergeabilityStateRequestValue = backingValue {
+  private val mergeabilityStateRequestValue = asyncValue { indicator ->
     val detailsRequest = detailsRequestValue.value
     val baseBranchProtectionRulesRequest = baseBranchProtectionRulesRequestValue.value
 
-    val mergeabilityData = requestExecutor.execute(GHGQLRequests.PullRequest.mergeabilityData(repository, number))
-                           ?: error("Could not find pull request $number")
-    val builder = GHPRMergeabilityStateBuilder(detailsRequest.joinCancellable(),
-                                               mergeabilityData)
-    val protectionRules = baseBranchProtectionRulesRequest.joinCancellable()
-    if (protectionRules != null) {
-      builder.withRestrictions(securityService, protectionRules)
-    }
-    builder.build()
+    gqlBatcher.executeAsync(indicator, GHGQLRequests.PullRequest.mergeabilityData(repository, number))
+      .thenCombine(detailsRequest, BiFunction<GHPullRequestMergeabilityData?, GHPullRequest, GHPRMergeabilityStateBuilder> { mergeabilityData, details ->
+        GHPRMergeabilityStateBuilder(details, mergeabilityData ?: error("Could not find pull request $number"))
+      })
+      .thenCombine(baseBranchProtectionRulesRequest,
+                   BiFunction<GHPRMergeabilityStateBuilder, GHBranchProtectionRules?, GHPRMergeabilityState> { builder, protectionRules ->
+                     if (protectionRules != null) {
+                       builder.withRestrictions(securityService, protectionRules)
+                     }
+                     builder.build()
+                   })
   }
   override val mergeabilityStateRequest: CompletableFuture<GHPRMergeabilityState>
     by backgroundProcessValue(mergeabilityStateRequestValue)
@@ -159,7 +186,7 @@ internal class GHPRDataProviderImpl(private val project: Project,
     val timelineModel = GHPRTimelineMergingModel()
     GHPRTimelineLoader(progressManager, requestExecutor,
                        repository.serverPath, repository.repositoryPath, number,
-                       timelineModel)
+                       timelineModel, gqlBatcher)
   }
 
   override val timelineLoader get() = timelineLoaderHolder.timelineLoader
@@ -211,7 +238,9 @@ internal class GHPRDataProviderImpl(private val project: Project,
       override fun compute(indicator: ProgressIndicator) = supplier(indicator)
     }
 
-  private fun <T> backgroundProcessValue(backingValue: LazyCancellableBackgroundProcessValue<T>): ReadOnlyProperty<Any?, CompletableFuture<T>> =
+  private fun <T> asyncValue(computer: (ProgressIndicator) -> CompletableFuture<T>) = LazyCancellableAsyncValue.create(computer)
+
+  private fun <T> backgroundProcessValue(backingValue: ClearableLazyValue<CompletableFuture<T>>): ReadOnlyProperty<Any?, CompletableFuture<T>> =
     object : ReadOnlyProperty<Any?, CompletableFuture<T>> {
       override fun getValue(thisRef: Any?, property: KProperty<*>) =
         GithubAsyncUtil.futureOfMutable { invokeAndWaitIfNeeded { backingValue.value } }
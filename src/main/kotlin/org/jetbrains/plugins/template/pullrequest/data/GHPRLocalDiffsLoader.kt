@@ -0,0 +1,89 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.pullrequest.data
+
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.vcs.VcsException
+import com.intellij.util.text.CharSequenceSubSequence
+import git4idea.commands.GitBinaryHandler
+import git4idea.commands.GitCommand
+import git4idea.repo.GitRepository
+import org.jetbrains.annotations.CalledInBackground
+
+/**
+ * Computes pull request diffs from the local repository instead of requesting them from the server
+ *
+ * Own diffs of all commits are read with a single `git log -p`, the diff of the head is computed with `git diff` from the merge base.
+ * Cumulative diffs of intermediate commits are not computed here, they are composed by [GHPRCumulativePatchComposer].
+ * Diffs have the same format as the ones sent by the server, i.e. renames are detected and object ids are not abbreviated.
+ * Output is read as is and decoded once, diffs of the commits are views of the log output.
+ */
+internal class GHPRLocalDiffsLoader(private val repository: GitRepository) {
+
+  /**
+   * @return own diff for every commit in the order of [commits] and the diff from [mergeBaseRev] to [headRev]
+   * or null if some of the commits are not available locally or are not on the first-parent chain from [headRev] to [mergeBaseRev]
+   */
+  @CalledInBackground
+  fun loadDiffs(indicator: ProgressIndicator, mergeBaseRev: String, headRev: String, commits: List<String>)
+    : Pair<List<CharSequence>, CharSequence>? {
+    indicator.checkCanceled()
+    val commitDiffs = loadCommitDiffs(mergeBaseRev, headRev) ?: return null
+    if (!commitDiffs.keys.containsAll(commits)) {
+      LOG.info("Pull request commits are not on the first-parent chain of $headRev, diffs will be loaded from server")
+      return null
+    }
+
+    indicator.checkCanceled()
+    val diffFromMergeBase = runGit(GitCommand.DIFF, *DIFF_PARAMETERS, mergeBaseRev, headRev) ?: return null
+    return commits.map(commitDiffs::getValue) to diffFromMergeBase
+  }
+
+  /**
+   * @return diff of every commit in [mergeBaseRev]..[headRev] with its first parent by commit hash
+   */
+  private fun loadCommitDiffs(mergeBaseRev: String, headRev: String): Map<String, CharSequence>? {
+    val output = runGit(GitCommand.LOG, "-p", "-m", "--first-parent", "--format=$COMMIT_PREFIX%H", *DIFF_PARAMETERS,
+                        "$mergeBaseRev..$headRev", "--") ?: return null
+
+    val result = mutableMapOf<String, CharSequence>()
+    var commit: String? = null
+    var diffStart = 0
+    var lineStart = 0
+    // diff lines start with a marker or a header keyword, so only commit headers start with the prefix
+    while (lineStart < output.length) {
+      val lineEnd = output.indexOf('\n', lineStart).let { if (it < 0) output.length else it }
+      if (output.startsWith(COMMIT_PREFIX, lineStart)) {
+        commit?.let { result[it] = CharSequenceSubSequence(output, diffStart, lineStart) }
+        commit = output.substring(lineStart + COMMIT_PREFIX.length, lineEnd).trim()
+        diffStart = minOf(lineEnd + 1, output.length)
+        // log puts an empty line between the header and the diff
+        if (output.startsWith("\n", diffStart)) diffStart++
+      }
+      lineStart = lineEnd + 1
+    }
+    commit?.let { result[it] = CharSequenceSubSequence(output, diffStart, output.length) }
+    return result
+  }
+
+  private fun runGit(command: GitCommand, vararg parameters: String): String? {
+    val handler = GitBinaryHandler(repository.project, repository.root, command)
+    handler.setSilent(true)
+    handler.addParameters(*parameters)
+    return try {
+      String(handler.run(), Charsets.UTF_8)
+    }
+    catch (e: VcsException) {
+      // most likely some objects are missing locally
+      LOG.info("Failed to compute diff locally, diffs will be loaded from server: ${e.message}")
+      null
+    }
+  }
+
+  companion object {
+    private val LOG = logger<GHPRLocalDiffsLoader>()
+
+    private const val COMMIT_PREFIX = "commit "
+    private val DIFF_PARAMETERS = arrayOf("-M", "--full-index", "--no-color", "--no-ext-diff")
+  }
+}
@@ -2,6 +2,7 @@
 package org.jetbrains.plugins.template.pullrequest.data
 
 import com.intellij.openapi.progress.ProgressManager
+import org.jetbrains.plugins.template.api.BBGQLRequestBatcher
 
 
 
@@ -11,12 +12,13 @@ class GHPRTimelineLoader(progressManager: ProgressManager,
                          serverPath: GithubServerPath,
                          repoPath: GHRepositoryPath,
                          number: Long,
-                         val listModel: GHPRTimelineMergingModel)
+                         val listModel: GHPRTimelineMergingModel,
+                         batcher: BBGQLRequestBatcher? = null)
   : GHGQLPagedListLoader<GHPRTimelineItem>(progressManager,
                                            SimpleGHGQLPagesLoader(requestExecutor, { p ->
                                              GHGQLRequests.PullRequest.Timeline.items(serverPath, repoPath.owner, repoPath.repository,
                                                                                       number, p)
-                                           }, true)) {
+                                           }, true, batcher = batcher)) {
   override val hasLoadedItems: Boolean
     get() = listModel.size != 0
 
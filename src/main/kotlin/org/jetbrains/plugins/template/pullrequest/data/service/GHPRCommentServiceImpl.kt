@@ -19,11 +19,10 @@ class GHPRCommentServiceImpl(private val progressManager: ProgressManager,
   override fun addComment(progressIndicator: ProgressIndicator,
                           pullRequest: Long,
                           body: String): CompletableFuture<GithubIssueCommentWithHtml> {
-    return progressManager.submitIOTask(progressIndicator) {
-      val comment = requestExecutor.execute(
-        GithubApiRequests.Repos.Issues.Comments.create(repository, pullRequest, body))
-      messageBus.syncPublisher(GHPRDataContext.PULL_REQUEST_EDITED_TOPIC).onPullRequestCommentsEdited(pullRequest)
-      comment
-    }
+    return requestExecutor.executeAsync(progressIndicator, GithubApiRequests.Repos.Issues.Comments.create(repository, pullRequest, body))
+      .thenApply { comment ->
+        messageBus.syncPublisher(GHPRDataContext.PULL_REQUEST_EDITED_TOPIC).onPullRequestCommentsEdited(pullRequest)
+        comment
+      }
   }
 }
\ No newline at end of file
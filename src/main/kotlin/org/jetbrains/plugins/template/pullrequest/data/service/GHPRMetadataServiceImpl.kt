@@ -6,6 +6,7 @@ import com.intellij.openapi.progress.ProgressIndicator
 import com.intellij.openapi.progress.ProgressManager
 import com.intellij.util.messages.MessageBus
 import org.jetbrains.annotations.CalledInBackground
+import org.jetbrains.plugins.template.api.data.request.BitbucketRequestFieldSelection
 
 
 
@@ -29,7 +30,7 @@ class GHPRMetadataServiceImpl internal constructor(progressManager: ProgressMana
   private val collaboratorsValue = LazyCancellableBackgroundProcessValue.create(progressManager) { indicator ->
     GithubApiPagesLoader
       .loadAll(requestExecutor, indicator,
-               GithubApiRequests.Repos.Collaborators.pages(serverPath, repoPath.owner, repoPath.repository))
+               GithubApiRequests.Repos.Collaborators.pages(serverPath, repoPath.owner, repoPath.repository, COLLABORATOR_FIELDS))
       .filter { it.permissions.isPush }
       .map { GHUser(it.nodeId, it.login, it.htmlUrl, it.avatarUrl ?: "", null) }
   }
@@ -60,7 +61,7 @@ class GHPRMetadataServiceImpl internal constructor(progressManager: ProgressMana
   private val assigneesValue = LazyCancellableBackgroundProcessValue.create(progressManager) { indicator ->
     GithubApiPagesLoader
       .loadAll(requestExecutor, indicator,
-               GithubApiRequests.Repos.Assignees.pages(serverPath, repoPath.owner, repoPath.repository))
+               GithubApiRequests.Repos.Assignees.pages(serverPath, repoPath.owner, repoPath.repository, USER_FIELDS))
       .map { GHUser(it.nodeId, it.login, it.htmlUrl, it.avatarUrl ?: "", null) }
   }
 
@@ -69,7 +70,7 @@ class GHPRMetadataServiceImpl internal constructor(progressManager: ProgressMana
   private val labelsValue = LazyCancellableBackgroundProcessValue.create(progressManager) { indicator ->
     GithubApiPagesLoader
       .loadAll(requestExecutor, indicator,
-               GithubApiRequests.Repos.Labels.pages(serverPath, repoPath.owner, repoPath.repository))
+               GithubApiRequests.Repos.Labels.pages(serverPath, repoPath.owner, repoPath.repository, LABEL_FIELDS))
       .map { GHLabel(it.nodeId, it.url, it.name, it.color) }
   }
 
@@ -132,4 +133,11 @@ class GHPRMetadataServiceImpl internal constructor(progressManager: ProgressMana
   override fun dispose() {
     resetData()
   }
-}
\ No newline at end of file
+
+  companion object {
+    // only the fields used to build the metadata models are requested
+    private val USER_FIELDS = BitbucketRequestFieldSelection.fields("node_id", "login", "html_url", "avatar_url")
+    private val COLLABORATOR_FIELDS = USER_FIELDS + BitbucketRequestFieldSelection.fields { "permissions" { +"push" } }
+    private val LABEL_FIELDS = BitbucketRequestFieldSelection.fields("node_id", "url", "name", "color")
+  }
+}
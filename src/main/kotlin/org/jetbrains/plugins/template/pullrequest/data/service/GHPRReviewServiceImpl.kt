@@ -18,21 +18,21 @@ class GHPRReviewServiceImpl(private val progressManager: ProgressManager,
   override fun canComment() = securityService.currentUserHasPermissionLevel(GHRepositoryPermissionLevel.READ)
 
   override fun getCommentMarkdownBody(progressIndicator: ProgressIndicator, commentId: String): CompletableFuture<String> {
-    return progressManager.submitIOTask(progressIndicator) {
-      requestExecutor.execute(GHGQLRequests.PullRequest.Review.getCommentBody(repository.serverPath, commentId))
-    }
+    return requestExecutor.executeAsync(progressIndicator,
+                                        GHGQLRequests.PullRequest.Review.getCommentBody(repository.serverPath, commentId))
   }
 
   override fun addComment(progressIndicator: ProgressIndicator,
                           pullRequest: Long,
                           body: String,
                           replyToCommentId: Long): CompletableFuture<GithubPullRequestCommentWithHtml> {
-    return progressManager.submitIOTask(progressIndicator) {
-      val comment = requestExecutor.execute(
-        GithubApiRequests.Repos.PullRequests.Comments.createReply(repository, pullRequest, replyToCommentId, body))
-      messageBus.syncPublisher(GHPRDataContext.PULL_REQUEST_EDITED_TOPIC).onPullRequestReviewsEdited(pullRequest)
-      comment
-    }
+    return requestExecutor.executeAsync(progressIndicator,
+                                        GithubApiRequests.Repos.PullRequests.Comments.createReply(repository, pullRequest,
+                                                                                                  replyToCommentId, body))
+      .thenApply { comment ->
+        messageBus.syncPublisher(GHPRDataContext.PULL_REQUEST_EDITED_TOPIC).onPullRequestReviewsEdited(pullRequest)
+        comment
+      }
   }
 
   override fun addComment(progressIndicator: ProgressIndicator,
@@ -41,24 +41,26 @@ class GHPRReviewServiceImpl(private val progressManager: ProgressManager,
                           commitSha: String,
                           fileName: String,
                           diffLine: Int): CompletableFuture<GithubPullRequestCommentWithHtml> {
-    return progressManager.submitIOTask(progressIndicator) {
-      val comment = requestExecutor.execute(
-        GithubApiRequests.Repos.PullRequests.Comments.create(repository, pullRequest, commitSha, fileName, diffLine, body))
-      messageBus.syncPublisher(GHPRDataContext.PULL_REQUEST_EDITED_TOPIC).onPullRequestReviewsEdited(pullRequest)
-      comment
-    }
+    return requestExecutor.executeAsync(progressIndicator,
+                                        GithubApiRequests.Repos.PullRequests.Comments.create(repository, pullRequest, commitSha,
+                                                                                             fileName, diffLine, body))
+      .thenApply { comment ->
+        messageBus.syncPublisher(GHPRDataContext.PULL_REQUEST_EDITED_TOPIC).onPullRequestReviewsEdited(pullRequest)
+        comment
+      }
   }
 
   override fun deleteComment(progressIndicator: ProgressIndicator, pullRequest: Long, commentId: String) =
-    progressManager.submitIOTask(progressIndicator) {
-      requestExecutor.execute(GHGQLRequests.PullRequest.Review.deleteComment(repository.serverPath, commentId))
+    requestExecutor.executeAsync(progressIndicator,
+                                 GHGQLRequests.PullRequest.Review.deleteComment(repository.serverPath, commentId)).thenApply {
       messageBus.syncPublisher(GHPRDataContext.PULL_REQUEST_EDITED_TOPIC).onPullRequestReviewsEdited(pullRequest)
     }
 
   override fun updateComment(progressIndicator: ProgressIndicator, pullRequest: Long, commentId: String, newText: String) =
-    progressManager.submitIOTask(progressIndicator) {
-      val comment = requestExecutor.execute(GHGQLRequests.PullRequest.Review.updateComment(repository.serverPath, commentId, newText))
-      messageBus.syncPublisher(GHPRDataContext.PULL_REQUEST_EDITED_TOPIC).onPullRequestReviewsEdited(pullRequest)
-      comment
-    }
+    requestExecutor.executeAsync(progressIndicator,
+                                 GHGQLRequests.PullRequest.Review.updateComment(repository.serverPath, commentId, newText))
+      .thenApply { comment ->
+        messageBus.syncPublisher(GHPRDataContext.PULL_REQUEST_EDITED_TOPIC).onPullRequestReviewsEdited(pullRequest)
+        comment
+      }
 }
\ No newline at end of file
@@ -16,47 +16,43 @@ class GHPRStateServiceImpl internal constructor(private val progressManager: Pro
   : GHPRStateService {
 
   override fun close(progressIndicator: ProgressIndicator, pullRequest: Long) =
-    progressManager.submitIOTask(progressIndicator) {
-      requestExecutor.execute(it,
-                              GithubApiRequests.Repos.PullRequests.update(serverPath, repoPath.owner, repoPath.repository, pullRequest,
-                                                                          state = GithubIssueState.closed))
+    requestExecutor.executeAsync(progressIndicator,
+                                 GithubApiRequests.Repos.PullRequests.update(serverPath, repoPath.owner, repoPath.repository, pullRequest,
+                                                                             state = GithubIssueState.closed)).thenApply {
       messageBus.syncPublisher(PULL_REQUEST_EDITED_TOPIC).onPullRequestEdited(pullRequest)
     }
 
   override fun reopen(progressIndicator: ProgressIndicator, pullRequest: Long) =
-    progressManager.submitIOTask(progressIndicator) {
-      requestExecutor.execute(it,
-                              GithubApiRequests.Repos.PullRequests.update(serverPath, repoPath.owner, repoPath.repository, pullRequest,
-                                                                          state = GithubIssueState.open))
+    requestExecutor.executeAsync(progressIndicator,
+                                 GithubApiRequests.Repos.PullRequests.update(serverPath, repoPath.owner, repoPath.repository, pullRequest,
+                                                                             state = GithubIssueState.open)).thenApply {
       messageBus.syncPublisher(PULL_REQUEST_EDITED_TOPIC).onPullRequestEdited(pullRequest)
     }
 
   override fun merge(progressIndicator: ProgressIndicator, pullRequest: Long,
                      commitMessage: Pair<String, String>, currentHeadRef: String) =
-    progressManager.submitIOTask(progressIndicator) {
-      requestExecutor.execute(it, GithubApiRequests.Repos.PullRequests.merge(serverPath, repoPath, pullRequest,
-                                                                             commitMessage.first, commitMessage.second,
-                                                                             currentHeadRef))
+    requestExecutor.executeAsync(progressIndicator,
+                                 GithubApiRequests.Repos.PullRequests.merge(serverPath, repoPath, pullRequest,
+                                                                            commitMessage.first, commitMessage.second,
+                                                                            currentHeadRef)).thenApply {
       messageBus.syncPublisher(PULL_REQUEST_EDITED_TOPIC).onPullRequestEdited(pullRequest)
     }
 
 
   override fun rebaseMerge(progressIndicator: ProgressIndicator, pullRequest: Long,
                            currentHeadRef: String) =
-    progressManager.submitIOTask(progressIndicator) {
-      requestExecutor.execute(it,
-                              GithubApiRequests.Repos.PullRequests.rebaseMerge(serverPath, repoPath, pullRequest,
-                                                                               currentHeadRef))
+    requestExecutor.executeAsync(progressIndicator,
+                                 GithubApiRequests.Repos.PullRequests.rebaseMerge(serverPath, repoPath, pullRequest,
+                                                                                  currentHeadRef)).thenApply {
       messageBus.syncPublisher(PULL_REQUEST_EDITED_TOPIC).onPullRequestEdited(pullRequest)
     }
 
   override fun squashMerge(progressIndicator: ProgressIndicator, pullRequest: Long,
                            commitMessage: Pair<String, String>, currentHeadRef: String) =
-    progressManager.submitIOTask(progressIndicator) {
-      requestExecutor.execute(it,
-                              GithubApiRequests.Repos.PullRequests.squashMerge(serverPath, repoPath, pullRequest,
-                                                                               commitMessage.first, commitMessage.second,
-                                                                               currentHeadRef))
+    requestExecutor.executeAsync(progressIndicator,
+                                 GithubApiRequests.Repos.PullRequests.squashMerge(serverPath, repoPath, pullRequest,
+                                                                                  commitMessage.first, commitMessage.second,
+                                                                                  currentHeadRef)).thenApply {
       messageBus.syncPublisher(PULL_REQUEST_EDITED_TOPIC).onPullRequestEdited(pullRequest)
     }
 }
@@ -47,6 +47,8 @@ import git4idea.checkout.GitCheckoutProvider
 import git4idea.commands.Git
 import git4idea.remote.GitRememberedInputs
 import icons.GithubIcons
+import org.jetbrains.plugins.template.api.data.BitbucketRepoBasic
+import org.jetbrains.plugins.template.api.data.request.BitbucketRequestFieldSelection
 
 
 
@@ -292,10 +294,13 @@ internal class BBCloneDialogExtensionComponent(
 
     progressManager.run(object : Task.Backgroundable(project, "Not Visible") {
       override fun run(indicator: ProgressIndicator) {
+        // only the fields shown in the list are requested
+        val repoFields = BitbucketRequestFieldSelection.of<BitbucketRepoBasic>()
         val repoPagesRequest = GithubApiRequests.CurrentUser.Repos.pages(account.server,
                                                                          affiliation = Affiliation.combine(Affiliation.OWNER,
                                                                                                            Affiliation.COLLABORATOR),
-                                                                         pagination = GithubRequestPagination.DEFAULT)
+                                                                         pagination = GithubRequestPagination.DEFAULT,
+                                                                         fields = repoFields)
         val pageItemsConsumer: (List<GithubRepo>) -> Unit = {
           runInEdt {
             repositoriesByAccount.getOrPut(account, { UpdateOrderLinkedHashSet() }).addAll(it)
@@ -308,7 +313,8 @@ internal class BBCloneDialogExtensionComponent(
         val userOrganizations = GithubApiPagesLoader.loadAll(executor, indicator, orgsRequest).sortedBy { it.login }
 
         for (org in userOrganizations) {
-          val orgRepoRequest = GithubApiRequests.Organisations.Repos.pages(account.server, org.login, GithubRequestPagination.DEFAULT)
+          val orgRepoRequest = GithubApiRequests.Organisations.Repos.pages(account.server, org.login, GithubRequestPagination.DEFAULT,
+                                                                           repoFields)
           GithubApiPagesLoader.loadAll(executor, indicator, orgRepoRequest, pageItemsConsumer)
         }
       }
@@ -6,14 +6,19 @@ import com.intellij.diff.util.Side
 import com.intellij.openapi.diff.impl.patch.PatchHunk
 import com.intellij.openapi.diff.impl.patch.PatchLine
 
+/**
+ * Hunk computations over [BBPatchHunks], a hunk is addressed by its index
+ */
 object BBPatchHunkUtil {
 
-  fun getRange(hunk: PatchHunk): Range {
-    var end1 = hunk.startLineBefore
-    var end2 = hunk.startLineAfter
+  fun getRange(hunks: BBPatchHunks, hunk: Int): Range {
+    val start1 = hunks.getStartLineBefore(hunk)
+    val start2 = hunks.getStartLineAfter(hunk)
+    var end1 = start1
+    var end2 = start2
 
-    for (line in hunk.lines) {
-      when (line.type) {
+    for (line in hunks.getLines(hunk)) {
+      when (hunks.getLineType(line)) {
         PatchLine.Type.REMOVE -> {
           end1++
         }
@@ -27,30 +32,30 @@ object BBPatchHunkUtil {
       }
     }
 
-    return Range(hunk.startLineBefore, end1, hunk.startLineAfter, end2)
+    return Range(start1, end1, start2, end2)
   }
 
-  fun getChangeOnlyRanges(hunk: PatchHunk): List<Range> {
+  fun getChangeOnlyRanges(hunks: BBPatchHunks, hunk: Int): List<Range> {
     val ranges = mutableListOf<Range>()
-    var start1 = hunk.startLineBefore
-    var start2 = hunk.startLineAfter
-    var end1 = hunk.startLineBefore
-    var end2 = hunk.startLineAfter
+    var start1 = hunks.getStartLineBefore(hunk)
+    var start2 = hunks.getStartLineAfter(hunk)
+    var end1 = start1
+    var end2 = start2
     var changeFound = false
     var newLine1 = false
     var newLine2 = false
 
-    for (line in hunk.lines) {
-      when (line.type) {
+    for (line in hunks.getLines(hunk)) {
+      when (hunks.getLineType(line)) {
         PatchLine.Type.REMOVE -> {
           end1++
           changeFound = true
-          newLine1 = !line.isSuppressNewLine
+          newLine1 = !hunks.isSuppressNewLine(line)
         }
         PatchLine.Type.ADD -> {
           end2++
           changeFound = true
-          newLine2 = !line.isSuppressNewLine
+          newLine2 = !hunks.isSuppressNewLine(line)
         }
         PatchLine.Type.CONTEXT -> {
           if (changeFound) {
@@ -63,8 +68,8 @@ object BBPatchHunkUtil {
           end1++
           end2++
           changeFound = false
-          newLine1 = !line.isSuppressNewLine
-          newLine2 = !line.isSuppressNewLine
+          newLine1 = !hunks.isSuppressNewLine(line)
+          newLine2 = !hunks.isSuppressNewLine(line)
         }
       }
     }
@@ -84,44 +89,49 @@ object BBPatchHunkUtil {
 """ + diffHunk
   }
 
-  fun findHunkLineIndexFromFileSideLineIndex(hunk: PatchHunk, side: Side, fileLineIndex: Int): Int? {
-    val sideFileLineIndex = fileLineIndex - side.select(hunk.startLineBefore, hunk.startLineAfter)
+  fun findHunkLineIndexFromFileSideLineIndex(hunks: BBPatchHunks, hunk: Int, side: Side, fileLineIndex: Int): Int? {
+    val sideFileLineIndex = fileLineIndex - side.select(hunks.getStartLineBefore(hunk), hunks.getStartLineAfter(hunk))
     var sideFileLineCounter = 0
 
     // +1 for header
     var hunkLineIndex = 1
 
     var lastMatchedLineWithNewline: Int? = null
-    for (line in hunk.lines) {
-      if (line.type == PatchLine.Type.ADD && side == Side.RIGHT ||
-          line.type == PatchLine.Type.REMOVE && side == Side.LEFT ||
-          line.type == PatchLine.Type.CONTEXT) {
+    for (line in hunks.getLines(hunk)) {
+      val type = hunks.getLineType(line)
+      if (type == PatchLine.Type.ADD && side == Side.RIGHT ||
+          type == PatchLine.Type.REMOVE && side == Side.LEFT ||
+          type == PatchLine.Type.CONTEXT) {
         if (sideFileLineCounter == sideFileLineIndex) return hunkLineIndex
         sideFileLineCounter++
         //potentially a comment on a newline
-        if (sideFileLineCounter == sideFileLineIndex && !line.isSuppressNewLine) lastMatchedLineWithNewline = hunkLineIndex
+        if (sideFileLineCounter == sideFileLineIndex && !hunks.isSuppressNewLine(line)) lastMatchedLineWithNewline = hunkLineIndex
       }
-      hunkLineIndex += if (line.isSuppressNewLine) 2 else 1
+      hunkLineIndex += if (hunks.isSuppressNewLine(line)) 2 else 1
     }
     return lastMatchedLineWithNewline
   }
 
-  fun findSideFileLineFromHunkLineIndex(hunk: PatchHunk, hunkLineIndex: Int): Pair<Side, Int>? {
+  fun findSideFileLineFromHunkLineIndex(hunk: PatchHunk, hunkLineIndex: Int) =
+    findSideFileLineFromHunkLineIndex(BBPatchHunks.create(listOf(hunk)), 0, hunkLineIndex)
+
+  fun findSideFileLineFromHunkLineIndex(hunks: BBPatchHunks, hunk: Int, hunkLineIndex: Int): Pair<Side, Int>? {
     //+1 for header
     var hunkLineIterator = 1
 
-    var lineNumberLeft = hunk.startLineBefore
-    var lineNumberRight = hunk.startLineAfter
+    var lineNumberLeft = hunks.getStartLineBefore(hunk)
+    var lineNumberRight = hunks.getStartLineAfter(hunk)
 
-    for (line in hunk.lines) {
+    for (line in hunks.getLines(hunk)) {
+      val type = hunks.getLineType(line)
       if (hunkLineIterator == hunkLineIndex) {
-        return when (line.type) {
+        return when (type) {
           PatchLine.Type.REMOVE -> Side.LEFT to lineNumberLeft
           PatchLine.Type.CONTEXT, PatchLine.Type.ADD -> Side.RIGHT to lineNumberRight
         }
       }
 
-      when (line.type) {
+      when (type) {
         PatchLine.Type.REMOVE -> lineNumberLeft++
         PatchLine.Type.ADD -> lineNumberRight++
         PatchLine.Type.CONTEXT -> {
@@ -130,7 +140,7 @@ object BBPatchHunkUtil {
         }
       }
 
-      hunkLineIterator += if (!line.isSuppressNewLine) 1 else 2
+      hunkLineIterator += if (!hunks.isSuppressNewLine(line)) 1 else 2
       //can't show comments on \No newline
       if (hunkLineIterator > hunkLineIndex) return null
     }
@@ -139,4 +149,9 @@ object BBPatchHunkUtil {
 
   // +1 for header
   fun getHunkLinesCount(hunk: PatchHunk) = hunk.lines.size + hunk.lines.count { it.isSuppressNewLine } + 1
+
+  // +1 for header
+  fun getHunkLinesCount(hunks: BBPatchHunks, hunk: Int) = hunks.getLines(hunk).let { lines ->
+    lines.count() + lines.count(hunks::isSuppressNewLine) + 1
+  }
 }
\ No newline at end of file
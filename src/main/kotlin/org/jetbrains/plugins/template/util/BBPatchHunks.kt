@@ -0,0 +1,94 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.util
+
+import com.intellij.openapi.diff.impl.patch.PatchHunk
+import com.intellij.openapi.diff.impl.patch.PatchLine
+import com.intellij.util.text.CharArrayCharSequence
+import gnu.trove.TByteArrayList
+import gnu.trove.TIntArrayList
+
+/**
+ * Hunks of a text file patch in a compact form
+ *
+ * [PatchHunk] keeps an object and a string for every line, which adds up for large pull requests
+ * as patches are retained for every change of every commit.
+ * Here line types are kept in a byte array, line starts in an int array and the text of all lines is stored in a single buffer.
+ * Hunks and lines are addressed by index, line indices are shared by all hunks.
+ */
+class BBPatchHunks private constructor(private val startLinesBefore: IntArray,
+                                       private val startLinesAfter: IntArray,
+                                       private val hunkStarts: IntArray,
+                                       private val lineFlags: ByteArray,
+                                       private val lineStarts: IntArray,
+                                       private val text: CharArray) {
+
+  val hunkCount: Int
+    get() = startLinesBefore.size
+
+  /**
+   * Same as [PatchHunk.getStartLineBefore]
+   */
+  fun getStartLineBefore(hunk: Int) = startLinesBefore[hunk]
+
+  /**
+   * Same as [PatchHunk.getStartLineAfter]
+   */
+  fun getStartLineAfter(hunk: Int) = startLinesAfter[hunk]
+
+  /**
+   * @return indices of the lines of [hunk]
+   */
+  fun getLines(hunk: Int): IntRange = hunkStarts[hunk] until hunkStarts[hunk + 1]
+
+  fun getLineType(line: Int): PatchLine.Type = LINE_TYPES[lineFlags[line].toInt() and TYPE_MASK]
+
+  fun isSuppressNewLine(line: Int) = lineFlags[line].toInt() and SUPPRESS_NEW_LINE != 0
+
+  fun getLineText(line: Int): CharSequence = CharArrayCharSequence(text, lineStarts[line], lineStarts[line + 1])
+
+  class Builder {
+    private val startLinesBefore = TIntArrayList()
+    private val startLinesAfter = TIntArrayList()
+    private val hunkStarts = TIntArrayList()
+    private val lineFlags = TByteArrayList()
+    private val lineStarts = TIntArrayList()
+    private val text = StringBuilder()
+
+    fun startHunk(startLineBefore: Int, startLineAfter: Int) = apply {
+      startLinesBefore.add(startLineBefore)
+      startLinesAfter.add(startLineAfter)
+      hunkStarts.add(lineFlags.size())
+    }
+
+    fun addLine(type: PatchLine.Type, lineText: CharSequence, suppressNewLine: Boolean) = apply {
+      check(hunkStarts.size() > 0) { "Line is added before the hunk is started" }
+      lineFlags.add((type.ordinal or (if (suppressNewLine) SUPPRESS_NEW_LINE else 0)).toByte())
+      lineStarts.add(text.length)
+      text.append(lineText)
+    }
+
+    fun build(): BBPatchHunks {
+      val lineCount = lineFlags.size()
+      return BBPatchHunks(startLinesBefore.toNativeArray(), startLinesAfter.toNativeArray(),
+                          hunkStarts.toNativeArray().copyOf(hunkStarts.size() + 1).also { it[hunkStarts.size()] = lineCount },
+                          lineFlags.toNativeArray(),
+                          lineStarts.toNativeArray().copyOf(lineCount + 1).also { it[lineCount] = text.length },
+                          CharArray(text.length).also { text.getChars(0, text.length, it, 0) })
+    }
+  }
+
+  companion object {
+    private val LINE_TYPES = PatchLine.Type.values()
+    private const val TYPE_MASK = 0x3
+    private const val SUPPRESS_NEW_LINE = 0x4
+
+    fun create(hunks: List<PatchHunk>): BBPatchHunks {
+      val builder = Builder()
+      for (hunk in hunks) {
+        builder.startHunk(hunk.startLineBefore, hunk.startLineAfter)
+        for (line in hunk.lines) builder.addLine(line.type, line.text, line.isSuppressNewLine)
+      }
+      return builder.build()
+    }
+  }
+}
@@ -0,0 +1,159 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.util
+
+import com.intellij.openapi.diff.impl.patch.FilePatch
+import com.intellij.openapi.diff.impl.patch.PatchReader
+import com.intellij.openapi.diff.impl.patch.TextFilePatch
+import com.intellij.openapi.vcs.VcsException
+import com.intellij.util.text.CharSequenceSubSequence
+import git4idea.GitUtil
+
+/**
+ * Reads patches from a diff one file at a time
+ *
+ * [PatchReader] splits the whole text to lines before parsing, so for a large diff the full text ends up on the heap.
+ * Here the diff is split to per-file sections by git headers first, sections are views of the source sequence
+ * and only one of them is tokenized at a time.
+ * With [readAllSections] only the file headers are read and hunks of a file are parsed when they are requested.
+ */
+object BBPatchReader {
+  private const val FILE_HEADER = "diff --git "
+  private const val HUNK_HEADER = "@@"
+  private const val NO_FILE = "/dev/null"
+
+  fun readAllPatches(diff: CharSequence): List<FilePatch> = splitFileSections(diff).flatMap { readPatches(it) }
+
+  fun readAllSections(diff: CharSequence): List<FileSection> = splitFileSections(diff).map(::readSection)
+
+  fun readPatches(section: CharSequence): List<FilePatch> {
+    val reader = PatchReader(section, true)
+    reader.parseAllPatches()
+    return reader.allPatches
+  }
+
+  /**
+   * Text before the first file header is skipped. Diff without git headers is returned as a single section.
+   */
+  fun splitFileSections(diff: CharSequence): List<CharSequence> {
+    val sections = mutableListOf<CharSequence>()
+    var sectionStart = -1
+    var lineStart = 0
+    while (lineStart < diff.length) {
+      if (diff.startsWith(FILE_HEADER, lineStart)) {
+        if (sectionStart >= 0) sections.add(CharSequenceSubSequence(diff, sectionStart, lineStart))
+        sectionStart = lineStart
+      }
+      val lineEnd = diff.indexOf('\n', lineStart)
+      if (lineEnd < 0) break
+      lineStart = lineEnd + 1
+    }
+    if (sectionStart >= 0) sections.add(CharSequenceSubSequence(diff, sectionStart, diff.length))
+    else if (diff.isNotEmpty()) sections.add(diff)
+    return sections
+  }
+
+  /**
+   * Reads file paths from the header lines preceding the first hunk
+   */
+  private fun readSection(section: CharSequence): FileSection {
+    var beforeName: String? = null
+    var afterName: String? = null
+    var added = false
+    var deleted = false
+
+    var lineStart = 0
+    while (lineStart < section.length && !section.startsWith(HUNK_HEADER, lineStart)) {
+      val lineEnd = section.indexOf('\n', lineStart).let { if (it < 0) section.length else it }
+      val line = section.subSequence(lineStart, lineEnd).toString().trimEnd('\r')
+      when {
+        line.startsWith(FILE_HEADER) -> {
+          val (before, after) = splitHeaderPaths(line.removePrefix(FILE_HEADER))
+          beforeName = before
+          afterName = after
+        }
+        line.startsWith("new file mode") -> added = true
+        line.startsWith("deleted file mode") -> deleted = true
+        line.startsWith("rename from ") -> beforeName = unquote(line.removePrefix("rename from "))
+        line.startsWith("rename to ") -> afterName = unquote(line.removePrefix("rename to "))
+        line.startsWith("--- ") -> line.removePrefix("--- ").let {
+          if (it == NO_FILE) added = true else beforeName = unquote(it).removePrefix("a/")
+        }
+        line.startsWith("+++ ") -> line.removePrefix("+++ ").let {
+          if (it == NO_FILE) deleted = true else afterName = unquote(it).removePrefix("b/")
+        }
+      }
+      lineStart = lineEnd + 1
+    }
+    if (added) beforeName = null
+    if (deleted) afterName = null
+    return FileSection(beforeName, afterName, section)
+  }
+
+  /**
+   * Paths in `diff --git a/path b/path` are not separated unambiguously, equal paths are checked first as the most common case.
+   * Quoted path ends with the closing quote.
+   */
+  private fun splitHeaderPaths(paths: String): Pair<String?, String?> {
+    val half = paths.length / 2
+    val separator = when {
+      paths.startsWith("\"") -> findQuotedEnd(paths)
+      paths.length % 2 == 1 && paths[half] == ' ' && paths.substring(2, half) == paths.substring(half + 3) -> half
+      else -> paths.indexOf(" b/").takeIf { it >= 0 } ?: paths.indexOf(" \"b/")
+    }
+    if (separator < 0 || separator >= paths.length) return null to null
+    return unquote(paths.substring(0, separator)).removePrefix("a/") to unquote(paths.substring(separator + 1)).removePrefix("b/")
+  }
+
+  /**
+   * @return index after the closing quote of the path starting at the beginning of [text] or -1 if the quote is not closed
+   */
+  private fun findQuotedEnd(text: String): Int {
+    var i = 1
+    while (i < text.length) {
+      when (text[i]) {
+        '\\' -> i++
+        '"' -> return i + 1
+      }
+      i++
+    }
+    return -1
+  }
+
+  /**
+   * Git quotes paths with special or non-ASCII characters and escapes them C-style, non-ASCII characters as octal UTF-8 bytes
+   */
+  private fun unquote(path: String): String {
+    if (!path.startsWith("\"")) return path
+    return try {
+      GitUtil.unescapePath(path)
+    }
+    catch (e: VcsException) {
+      path.removeSurrounding("\"")
+    }
+  }
+
+  /**
+   * Diff of a single file
+   *
+   * @param beforeName path before the change or null if the file is added
+   * @param afterName path after the change or null if the file is deleted
+   */
+  class FileSection(val beforeName: String?, val afterName: String?, sectionText: CharSequence) {
+    /**
+     * View of the whole diff, so it's released once the hunks are parsed and the diff is freed when all sections are parsed
+     */
+    private var text: CharSequence? = sectionText
+
+    val filePath: String
+      get() = (afterName ?: beforeName)!!
+
+    /**
+     * Hunks are parsed on the first access and only their compact form is retained, null for binary files
+     */
+    val hunks: BBPatchHunks? by lazy {
+      val hunks = (readPatches(text!!).firstOrNull() as? TextFilePatch)?.let { BBPatchHunks.create(it.hunks) }
+      text = null
+      hunks
+    }
+  }
+}
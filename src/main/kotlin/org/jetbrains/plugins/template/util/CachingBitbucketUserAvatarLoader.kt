@@ -2,20 +2,15 @@
 package org.jetbrains.plugins.template.util
 
 import com.google.common.cache.CacheBuilder
-import com.intellij.execution.process.ProcessIOExecutorService
 import com.intellij.openapi.Disposable
 import com.intellij.openapi.components.service
 import com.intellij.openapi.diagnostic.logger
 import com.intellij.openapi.progress.EmptyProgressIndicator
-import com.intellij.openapi.progress.ProcessCanceledException
-import com.intellij.openapi.progress.ProgressManager
-import com.intellij.openapi.util.Computable
 import com.intellij.openapi.util.LowMemoryWatcher
 import com.intellij.util.ImageLoader
 import java.awt.Image
 import java.util.concurrent.CompletableFuture
 import java.util.concurrent.TimeUnit
-import java.util.function.Supplier
 
 class CachingBitbucketUserAvatarLoader : Disposable {
   private val LOG = logger<CachingBitbucketUserAvatarLoader>()
@@ -36,32 +31,18 @@ class CachingBitbucketUserAvatarLoader : Disposable {
     val imageSize = MAXIMUM_ICON_SIZE * 6
 
     return avatarCache.get(url) {
-      CompletableFuture.supplyAsync(Supplier {
-        try {
-          ProgressManager.getInstance().runProcess(Computable { loadAndDownscale(requestExecutor, indicator, url, imageSize) }, indicator)
-        }
-        catch (e: ProcessCanceledException) {
+      requestExecutor.executeAsync(indicator, GithubApiRequests.CurrentUser.getAvatar(url))
+        .thenApply<Image?> { image -> downscale(image, imageSize) }
+        .exceptionally { error ->
+          if (!BitbucketAsyncUtil.isCancellation(error)) LOG.debug("Error loading image from $url", error)
           null
         }
-      }, ProcessIOExecutorService.INSTANCE)
     }
   }
 
-  private fun loadAndDownscale(requestExecutor: GithubApiRequestExecutor, indicator: EmptyProgressIndicator,
-                               url: String, maximumSize: Int): Image? {
-    try {
-      val image = requestExecutor.execute(indicator, GithubApiRequests.CurrentUser.getAvatar(url))
-      return if (image.getWidth(null) <= maximumSize && image.getHeight(null) <= maximumSize) image
-      else ImageLoader.scaleImage(image, maximumSize)
-    }
-    catch (e: ProcessCanceledException) {
-      return null
-    }
-    catch (e: Exception) {
-      LOG.debug("Error loading image from $url", e)
-      return null
-    }
-  }
+  private fun downscale(image: Image, maximumSize: Int): Image =
+    if (image.getWidth(null) <= maximumSize && image.getHeight(null) <= maximumSize) image
+    else ImageLoader.scaleImage(image, maximumSize)
 
   override fun dispose() {
     progressIndicator.cancel()
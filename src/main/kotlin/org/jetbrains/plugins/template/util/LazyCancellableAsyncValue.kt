@@ -0,0 +1,39 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.util
+
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.util.ClearableLazyValue
+import java.util.concurrent.CompletableFuture
+
+/**
+ * Same as [LazyCancellableBackgroundProcessValue], but the value is composed from asynchronous operations
+ * and no thread of the caller is occupied while they are running
+ *
+ * [compute] should not block, all the operations started there should be bound to the provided indicator
+ */
+abstract class LazyCancellableAsyncValue<T> : ClearableLazyValue<CompletableFuture<T>>() {
+  private var progressIndicator = NonReusableEmptyProgressIndicator()
+
+  override fun compute(): CompletableFuture<T> {
+    progressIndicator = NonReusableEmptyProgressIndicator()
+    return try {
+      compute(progressIndicator)
+    }
+    catch (e: Throwable) {
+      CompletableFuture<T>().apply { completeExceptionally(e) }
+    }
+  }
+
+  abstract fun compute(indicator: ProgressIndicator): CompletableFuture<T>
+
+  override fun drop() {
+    super.drop()
+    progressIndicator.cancel()
+  }
+
+  companion object {
+    fun <T> create(computer: (ProgressIndicator) -> CompletableFuture<T>) = object : LazyCancellableAsyncValue<T>() {
+      override fun compute(indicator: ProgressIndicator) = computer(indicator)
+    }
+  }
+}
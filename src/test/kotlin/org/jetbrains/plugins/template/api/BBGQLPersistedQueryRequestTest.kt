@@ -0,0 +1,153 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api
+
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.intellij.openapi.progress.EmptyProgressIndicator
+import com.intellij.testFramework.fixtures.BasePlatformTestCase
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import org.jetbrains.plugins.template.api.BitbucketApiRequest.Post.GQLQuery
+import org.jetbrains.plugins.template.util.BitbucketSettings
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Runs persisted queries against a stand-in GraphQL server which keeps registered queries by their hash
+ */
+class BBGQLPersistedQueryRequestTest : BasePlatformTestCase() {
+  private lateinit var server: StandInServer
+  private lateinit var executor: BitbucketApiRequestExecutor
+
+  override fun setUp() {
+    super.setUp()
+    server = StandInServer()
+    val settings = BitbucketSettings().apply { isUsePersistedGQLQueries = true }
+    executor = BitbucketApiRequestExecutor.WithTokenAuth(settings, "token", false)
+  }
+
+  override fun tearDown() {
+    try {
+      server.stop()
+    }
+    finally {
+      super.tearDown()
+    }
+  }
+
+  fun `test unknown hash is registered with the full query`() {
+    assertEquals("repo", execute())
+    assertEquals(2, server.requests.size)
+    assertHashOnly(server.requests[0])
+    assertFullText(server.requests[1])
+    assertEquals(BBGQLQueryLoader.loadQuery(QUERY_NAME), server.registeredQueries[BBGQLQueryLoader.getQueryHash(QUERY_NAME)])
+  }
+
+  fun `test registered hash is sent without the query text`() {
+    execute()
+    server.requests.clear()
+
+    assertEquals("repo", execute())
+    assertHashOnly(server.requests.single())
+  }
+
+  fun `test plain query is sent when persisted queries are not supported`() {
+    server.supportsPersistedQueries = false
+
+    assertEquals("repo", execute())
+    assertEquals(2, server.requests.size)
+    assertHashOnly(server.requests[0])
+    assertPlain(server.requests[1])
+
+    server.requests.clear()
+    assertEquals("repo", execute())
+    assertPlain(server.requests.single())
+  }
+
+  private fun execute(): String? {
+    // endpoints which don't support persisted queries are remembered by url, so every test uses its own one
+    val url = "${server.url}/${getTestName(true).replace(' ', '_')}"
+    val query = GQLQuery.OptionalTraversedParsed(url, QUERY_NAME, mapOf("repoOwner" to "owner", "repoName" to "repo"),
+                                                 TestRepository::class.java, "repository")
+    return executor.execute(EmptyProgressIndicator(), query)?.name
+  }
+
+  private fun assertHashOnly(request: JsonNode) {
+    assertFalse(request.hasNonNull("query"))
+    assertEquals(BBGQLQueryLoader.getQueryHash(QUERY_NAME), request.getHash())
+  }
+
+  private fun assertFullText(request: JsonNode) {
+    assertEquals(BBGQLQueryLoader.loadQuery(QUERY_NAME), request.get("query").asText())
+    assertEquals(BBGQLQueryLoader.getQueryHash(QUERY_NAME), request.getHash())
+  }
+
+  private fun assertPlain(request: JsonNode) {
+    assertEquals(BBGQLQueryLoader.loadQuery(QUERY_NAME), request.get("query").asText())
+    assertFalse(request.hasNonNull("extensions"))
+  }
+
+  private fun JsonNode.getHash(): String? = get("extensions")?.get("persistedQuery")?.get("sha256Hash")?.asText()
+
+  class TestRepository(val name: String)
+
+  private class StandInServer {
+    private val httpServer = HttpServer.create(InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0)
+    private val mapper = ObjectMapper()
+
+    val requests = CopyOnWriteArrayList<JsonNode>()
+    val registeredQueries = ConcurrentHashMap<String, String>()
+
+    @Volatile
+    var supportsPersistedQueries = true
+
+    val url: String
+      get() = "http://${httpServer.address.hostString}:${httpServer.address.port}"
+
+    init {
+      httpServer.createContext("/", ::handle)
+      httpServer.start()
+    }
+
+    private fun handle(exchange: HttpExchange) {
+      val request = exchange.requestBody.use { mapper.readTree(it) }
+      requests.add(request)
+
+      val text = request.get("query")?.takeIf { !it.isNull }?.asText()
+      val hash = request.get("extensions")?.get("persistedQuery")?.get("sha256Hash")?.asText()
+      val response = when {
+        hash == null -> DATA
+        !supportsPersistedQueries -> error(BBGQLPersistedQueryRequest.NOT_SUPPORTED_ERROR)
+        text != null -> {
+          if (sha256(text) != hash) error("provided sha does not match query")
+          else {
+            registeredQueries[hash] = text
+            DATA
+          }
+        }
+        registeredQueries.containsKey(hash) -> DATA
+        else -> error(BBGQLPersistedQueryRequest.NOT_FOUND_ERROR)
+      }
+
+      val bytes = response.toByteArray(Charsets.UTF_8)
+      exchange.responseHeaders.add("Content-Type", BitbucketApiContentHelper.JSON_MIME_TYPE)
+      exchange.sendResponseHeaders(200, bytes.size.toLong())
+      exchange.responseBody.use { it.write(bytes) }
+    }
+
+    private fun error(message: String) = """{"errors": [{"message": "$message", "locations": []}]}"""
+
+    private fun sha256(text: String) = MessageDigest.getInstance("SHA-256").digest(text.toByteArray(Charsets.UTF_8))
+      .joinToString("") { String.format("%02x", it) }
+
+    fun stop() = httpServer.stop(0)
+  }
+
+  companion object {
+    private const val QUERY_NAME = BBGQLQueries.findRepositoryPermission
+    private const val DATA = """{"data": {"repository": {"name": "repo"}}}"""
+  }
+}
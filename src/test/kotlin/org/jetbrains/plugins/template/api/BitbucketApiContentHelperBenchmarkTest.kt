@@ -0,0 +1,116 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api
+
+import com.fasterxml.jackson.databind.JsonNode
+import org.jetbrains.plugins.template.api.data.BBConnection
+import org.jetbrains.plugins.template.api.data.BBIssueComment
+import org.jetbrains.plugins.template.api.data.graphql.BBGQLPageInfo
+import org.jetbrains.plugins.template.api.data.graphql.BBGQLResponse
+import org.jetbrains.plugins.template.api.data.pullrequest.timeline.BBPRRenamedTitleEvent
+import org.jetbrains.plugins.template.api.data.pullrequest.timeline.BBPRTimelineItem
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.StringReader
+
+/**
+ * Compares binding of a timeline page with [BitbucketApiContentHelper.readGQLResponse]
+ * to the former way of reading the whole response to a tree, printing the value at the path back to a string and parsing it again
+ */
+class BitbucketApiContentHelperBenchmarkTest {
+
+  @Test
+  fun `streaming binding of timeline is not slower than tree round trip`() {
+    val json = createTimelineResponse(NODES)
+
+    val expected = describe(readWithRoundTrip(json))
+    assertEquals(NODES, expected.size)
+    assertEquals(expected, describe(readStreaming(json)))
+
+    repeat(WARMUP_ITERATIONS) {
+      readWithRoundTrip(json)
+      readStreaming(json)
+    }
+    val roundTripNanos = measure { readWithRoundTrip(json) }
+    val streamingNanos = measure { readStreaming(json) }
+    println("Timeline of $NODES nodes, average of $ITERATIONS reads: " +
+            "tree round trip ${roundTripNanos / ITERATIONS / 1000} us, streaming ${streamingNanos / ITERATIONS / 1000} us")
+    assertTrue("Streaming binding took $streamingNanos ns, tree round trip took $roundTripNanos ns",
+               streamingNanos <= roundTripNanos * TOLERANCE)
+  }
+
+  private fun readStreaming(json: String): TimelineConnection? =
+    BitbucketApiContentHelper.readGQLResponse(StringReader(json), TimelineConnection::class.java, PATH).data
+
+  private fun readWithRoundTrip(json: String): TimelineConnection? {
+    @Suppress("UNCHECKED_CAST")
+    val response = BitbucketApiContentHelper.readJsonObject(StringReader(json), BBGQLResponse::class.java, JsonNode::class.java,
+                                                            gqlNaming = true) as BBGQLResponse<JsonNode>
+    var node = response.data ?: return null
+    for (path in PATH) {
+      node = node[path] ?: return null
+    }
+    return if (node.isNull) null else BitbucketApiContentHelper.fromJson(node.toString(), TimelineConnection::class.java, true)
+  }
+
+  private inline fun measure(read: () -> Unit): Long {
+    val start = System.nanoTime()
+    repeat(ITERATIONS) { read() }
+    return System.nanoTime() - start
+  }
+
+  private fun describe(connection: TimelineConnection?): List<String> = connection!!.nodes.map {
+    when (it) {
+      is BBIssueComment -> "comment ${it.id} ${it.author?.login} ${it.createdAt.time} ${it.bodyHtml}"
+      is BBPRRenamedTitleEvent -> "renamed ${it.actor?.login} ${it.createdAt.time} ${it.previousTitle} ${it.currentTitle}"
+      else -> it.javaClass.simpleName
+    }
+  }
+
+  /**
+   * Comments, events and items of unknown types alternate, the response has unrelated fields around the timeline
+   */
+  private fun createTimelineResponse(nodeCount: Int): String {
+    val nodes = (0 until nodeCount).joinToString(",\n") { index ->
+      val actor = """{"__typename": "User", "id": "user$index", "login": "user${index % 7}", "url": "https://example.com/user${index % 7}",
+                      "avatarUrl": "https://example.com/avatar/${index % 7}", "name": "User ${index % 7}"}"""
+      val createdAt = "2020-01-${(index % 28 + 1).toString().padStart(2, '0')}T10:${(index % 60).toString().padStart(2, '0')}:00Z"
+      when (index % 3) {
+        0 -> """{"__typename": "IssueComment", "id": "comment$index", "url": "https://example.com/comment$index", "author": $actor,
+                 "bodyHTML": "<p>Comment $index ${"text ".repeat(index % 20)}</p>", "createdAt": "$createdAt"}"""
+        1 -> """{"__typename": "RenamedTitleEvent", "actor": $actor, "createdAt": "$createdAt",
+                 "previousTitle": "Title ${index - 1}", "currentTitle": "Title $index"}"""
+        else -> """{"__typename": "SubscribedEvent", "actor": $actor, "createdAt": "$createdAt"}"""
+      }
+    }
+    return """
+      {
+        "data": {
+          "repository": {
+            "name": "project",
+            "pullRequest": {
+              "number": 42,
+              "title": "Title $nodeCount",
+              "timelineItems": {
+                "pageInfo": {"startCursor": "start", "hasPreviousPage": false, "endCursor": "end", "hasNextPage": true},
+                "nodes": [$nodes]
+              }
+            }
+          }
+        },
+        "extensions": {"cost": {"requestedQueryCost": 1}}
+      }
+    """.trimIndent()
+  }
+
+  private class TimelineConnection(pageInfo: BBGQLPageInfo, nodes: List<BBPRTimelineItem>)
+    : BBConnection<BBPRTimelineItem>(pageInfo, nodes)
+
+  companion object {
+    private val PATH = arrayOf("repository", "pullRequest", "timelineItems")
+    private const val NODES = 500
+    private const val WARMUP_ITERATIONS = 50
+    private const val ITERATIONS = 100
+    // timings of a shared machine are noisy, only a clear regression fails the test
+    private const val TOLERANCE = 1.5
+  }
+}
@@ -0,0 +1,124 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.api
+
+import org.jetbrains.plugins.template.api.data.graphql.BBGQLPageInfo
+import org.jetbrains.plugins.template.api.data.graphql.BBGQLResponse
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.StringReader
+
+class BitbucketApiContentHelperTest {
+
+  @Test
+  fun `value at path is bound`() {
+    val response = read("""
+      {
+        "data": {
+          "repository": {
+            "name": "project",
+            "pullRequest": {
+              "number": 42,
+              "commits": {
+                "pageInfo": {"startCursor": "a", "hasPreviousPage": false, "endCursor": "b", "hasNextPage": true},
+                "nodes": [{"commit": {"oid": "1234"}}]
+              }
+            }
+          }
+        }
+      }
+    """, "repository", "pullRequest", "commits", "pageInfo")
+
+    val pageInfo = response.data!!
+    assertEquals("a", pageInfo.startCursor)
+    assertFalse(pageInfo.hasPreviousPage)
+    assertEquals("b", pageInfo.endCursor)
+    assertTrue(pageInfo.hasNextPage)
+    assertNull(response.errors)
+  }
+
+  @Test
+  fun `missing field on the path gives null`() {
+    val response = read("""
+      {"data": {"repository": {"name": "project", "issues": {"pageInfo": {"hasPreviousPage": false, "hasNextPage": false}}}}}
+    """, "repository", "pullRequest", "pageInfo")
+
+    assertNull(response.data)
+    assertNull(response.errors)
+  }
+
+  @Test
+  fun `null on the path gives null`() {
+    val response = read("""
+      {"data": {"repository": {"pullRequest": null}}}
+    """, "repository", "pullRequest", "pageInfo")
+
+    assertNull(response.data)
+  }
+
+  @Test
+  fun `null value at path gives null`() {
+    val response = read("""
+      {"data": {"repository": {"pageInfo": null}}}
+    """, "repository", "pageInfo")
+
+    assertNull(response.data)
+  }
+
+  @Test
+  fun `non-object on the path gives null`() {
+    val response = read("""
+      {"data": {"repository": [{"pageInfo": {"hasPreviousPage": true, "hasNextPage": true}}]}}
+    """, "repository", "pageInfo")
+
+    assertNull(response.data)
+  }
+
+  @Test
+  fun `null data is read with errors`() {
+    val response = read("""
+      {
+        "data": null,
+        "errors": [
+          {"type": "NOT_FOUND", "message": "Could not resolve to a Repository", "locations": [{"line": 2, "column": 3}]}
+        ]
+      }
+    """, "repository", "pageInfo")
+
+    assertNull(response.data)
+    val error = response.errors!!.single()
+    assertEquals("NOT_FOUND", error.type)
+    assertEquals("Could not resolve to a Repository", error.message)
+    assertEquals(2, error.locations.single().line)
+    assertEquals(3, error.locations.single().column)
+  }
+
+  @Test
+  fun `errors and fields after skipped data are read`() {
+    val response = read("""
+      {
+        "data": {"repository": {"pullRequest": {"nested": {"deeper": [1, 2, {"x": null}]}}}},
+        "errors": [{"message": "Something went wrong", "locations": []}],
+        "extensions": {"cost": {"requestedQueryCost": 1}}
+      }
+    """, "repository", "pageInfo")
+
+    assertNull(response.data)
+    assertEquals("Something went wrong", response.errors!!.single().message)
+  }
+
+  @Test
+  fun `errors before data are read`() {
+    val response = read("""
+      {
+        "errors": [{"message": "Partial result", "locations": []}],
+        "data": {"repository": {"pageInfo": {"hasPreviousPage": false, "hasNextPage": true}}}
+      }
+    """, "repository", "pageInfo")
+
+    assertTrue(response.data!!.hasNextPage)
+    assertEquals("Partial result", response.errors!!.single().message)
+  }
+
+  private fun read(json: String, vararg path: String): BBGQLResponse<BBGQLPageInfo> =
+    BitbucketApiContentHelper.readGQLResponse(StringReader(json.trimIndent()), BBGQLPageInfo::class.java, path)
+}
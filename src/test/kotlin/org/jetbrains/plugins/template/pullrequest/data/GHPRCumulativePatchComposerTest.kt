@@ -0,0 +1,235 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.pullrequest.data
+
+import com.intellij.openapi.diff.impl.patch.PatchLine
+import org.jetbrains.plugins.template.util.BBPatchHunks
+import org.jetbrains.plugins.template.util.BBPatchReader
+import org.junit.Assert.*
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import kotlin.random.Random
+
+/**
+ * Composes patches of random commit sequences and checks them against the diffs from the base computed by git
+ *
+ * Context of a composed patch can be shorter than the one computed by git, so the patches are compared by applying them to the base.
+ */
+class GHPRCumulativePatchComposerTest {
+
+  @get:Rule
+  val tempFolder = TemporaryFolder()
+
+  @Test
+  fun `composed patches match git diffs`() {
+    for (seed in 0 until ITERATIONS) {
+      checkRandomHistory(seed)
+    }
+  }
+
+  private fun checkRandomHistory(seed: Int) {
+    val random = Random(seed)
+    val repository = TestRepository(tempFolder.newFolder())
+    val files = FilesGenerator(random)
+
+    val baseFiles = files.snapshot()
+    val baseSha = repository.commit(baseFiles)
+
+    val composer = GHPRCumulativePatchComposer()
+    var lastSha = baseSha
+    repeat(random.nextInt(1, MAX_COMMITS + 1)) { commitIndex ->
+      repeat(random.nextInt(1, MAX_ACTIONS + 1)) { files.change() }
+      val commitFiles = files.snapshot()
+      val commitSha = repository.commit(commitFiles)
+      val message = "seed $seed, commit $commitIndex"
+
+      val composedPatches = composer.append(BBPatchReader.readAllSections(repository.diff(lastSha, commitSha)))
+      val cumulativeSections = BBPatchReader.readAllSections(repository.diff(baseSha, commitSha))
+
+      for (section in cumulativeSections) {
+        val before = section.beforeName?.let(baseFiles::getValue).orEmpty()
+        val after = section.afterName?.let(commitFiles::getValue).orEmpty()
+        assertEquals("$message, git patch for ${section.filePath}", after, apply(section.hunks!!, before))
+
+        val composed = composedPatches[section.filePath]
+        assertNotNull("$message, no composed patch for ${section.filePath}", composed)
+        assertEquals("$message, composed patch for ${section.filePath}", after, apply(composed!!.value!!, before))
+      }
+
+      // changes of these files were reverted
+      val cumulativePaths = cumulativeSections.map { it.filePath }.toSet()
+      for ((filePath, composed) in composedPatches) {
+        if (filePath in cumulativePaths) continue
+        assertEquals("$message, composed patch for unchanged $filePath", 0, composed.value!!.hunkCount)
+      }
+      lastSha = commitSha
+    }
+  }
+
+  private fun apply(hunks: BBPatchHunks, content: String): String {
+    val lines = splitLines(content)
+    val result = StringBuilder()
+    var line = 0
+    for (hunk in 0 until hunks.hunkCount) {
+      val hunkLines = hunks.getLines(hunk)
+      val beforeCount = hunkLines.count { hunks.getLineType(it) != PatchLine.Type.ADD }
+      // see GHPRCumulativePatchComposer.getFileLine
+      val start = if (beforeCount == 0) hunks.getStartLineBefore(hunk) + 1 else hunks.getStartLineBefore(hunk)
+      assertTrue("Hunk $hunk overlaps the previous one", start >= line)
+      while (line < start) result.append(lines[line++])
+
+      for (hunkLine in hunkLines) {
+        val text = hunks.getLineText(hunkLine).toString() + if (hunks.isSuppressNewLine(hunkLine)) "" else "\n"
+        when (hunks.getLineType(hunkLine)) {
+          PatchLine.Type.CONTEXT -> {
+            assertEquals("Context of hunk $hunk", lines.getOrNull(line++), text)
+            result.append(text)
+          }
+          PatchLine.Type.REMOVE -> assertEquals("Removed line of hunk $hunk", lines.getOrNull(line++), text)
+          PatchLine.Type.ADD -> result.append(text)
+        }
+      }
+    }
+    while (line < lines.size) result.append(lines[line++])
+    return result.toString()
+  }
+
+  /**
+   * @return lines with their line separators
+   */
+  private fun splitLines(content: String): List<String> {
+    val lines = mutableListOf<String>()
+    var start = 0
+    while (start < content.length) {
+      val end = content.indexOf('\n', start).let { if (it < 0) content.length else it + 1 }
+      lines.add(content.substring(start, end))
+      start = end
+    }
+    return lines
+  }
+
+  /**
+   * Generates file contents and their changes
+   *
+   * Lines are picked from a few values, so the changes can be aligned in more than one way, but lines of different files differ,
+   * so git pairs renamed files the same way in all diffs.
+   * Files are never empty and are only changed by a few lines per commit, so the renames are always detected.
+   * Deleted files are added back with the same lines and an edit.
+   * Files renamed or added back in a commit are not renamed or deleted again in the same commit,
+   * since the diff of the commit would not show where they come from.
+   */
+  private class FilesGenerator(private val random: Random) {
+    private val files = LinkedHashMap<String, FileContent>()
+    private val deletedFiles = LinkedHashMap<String, FileContent>()
+    private val movedFiles = mutableSetOf<FileContent>()
+    private var lastId = 0
+
+    init {
+      repeat(random.nextInt(1, 4)) { addFile() }
+    }
+
+    /**
+     * Changes after the snapshot go to the next commit
+     */
+    fun snapshot(): Map<String, String> {
+      movedFiles.clear()
+      return files.mapValues { it.value.toString() }
+    }
+
+    fun change() {
+      val filePath = files.keys.random(random)
+      val file = files.getValue(filePath)
+      when (random.nextInt(7)) {
+        0, 1 -> edit(file)
+        2 -> file.noNewLineAtEnd = !file.noNewLineAtEnd
+        3 -> if (file !in movedFiles) {
+          files.remove(filePath)
+          files["${filePath.substringBeforeLast('.')}-moved.txt"] = file
+          movedFiles.add(file)
+          file.lines.add(random.nextInt(file.lines.size + 1), createLine(file.id))
+        }
+        4 -> if (files.size > 1 && file !in movedFiles) {
+          deletedFiles[filePath] = files.remove(filePath)!!
+        }
+        5 -> if (deletedFiles.isNotEmpty()) {
+          val deletedPath = deletedFiles.keys.random(random)
+          val deletedFile = deletedFiles.remove(deletedPath)!!
+          files[deletedPath] = deletedFile
+          movedFiles.add(deletedFile)
+          edit(deletedFile)
+        }
+        6 -> addFile()
+      }
+    }
+
+    private fun addFile() {
+      val id = ++lastId
+      files["dir$id/file$id.txt"] = createContent(id, random.nextInt(MIN_LINES, MAX_LINES))
+    }
+
+    private fun edit(file: FileContent) {
+      val start = random.nextInt(file.lines.size + 1)
+      val removed = minOf(random.nextInt(MAX_EDIT_LINES + 1), file.lines.size - start, file.lines.size - 1)
+      repeat(removed) { file.lines.removeAt(start) }
+      file.lines.addAll(start, List(random.nextInt(MAX_EDIT_LINES + 1)) { createLine(file.id) })
+    }
+
+    private fun createContent(id: Int, lineCount: Int) =
+      FileContent(id, MutableList(lineCount) { createLine(id) }, random.nextInt(4) == 0)
+
+    private fun createLine(id: Int) = "file $id line ${random.nextInt(LINE_VALUES)}"
+  }
+
+  private class FileContent(val id: Int, val lines: MutableList<String>, var noNewLineAtEnd: Boolean) {
+    override fun toString() = lines.joinToString("\n", postfix = if (noNewLineAtEnd) "" else "\n")
+  }
+
+  private class TestRepository(private val root: File) {
+    init {
+      git("init", "-q")
+    }
+
+    /**
+     * Replaces the content of the repository with [files]
+     *
+     * @return hash of the created commit
+     */
+    fun commit(files: Map<String, String>): String {
+      root.listFiles()!!.filter { it.name != ".git" }.forEach { it.deleteRecursively() }
+      for ((filePath, content) in files) {
+        File(root, filePath).apply { parentFile.mkdirs() }.writeText(content)
+      }
+      git("add", "-A")
+      git("commit", "-q", "--allow-empty", "-m", "commit")
+      return git("rev-parse", "HEAD").trim()
+    }
+
+    fun diff(fromSha: String, toSha: String) = git("diff", "-M", "--full-index", "--no-color", "--no-ext-diff", fromSha, toSha)
+
+    private fun git(vararg parameters: String): String {
+      val process = ProcessBuilder("git", "-c", "user.name=Test", "-c", "user.email=test@example.com", *parameters)
+        .directory(root)
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .apply {
+          // user configuration can change the diff format
+          environment()["HOME"] = root.parent
+          environment()["GIT_CONFIG_NOSYSTEM"] = "1"
+        }
+        .start()
+      val output = process.inputStream.use { String(it.readBytes(), Charsets.UTF_8) }
+      assertEquals("git ${parameters.joinToString(" ")}", 0, process.waitFor())
+      return output
+    }
+  }
+
+  companion object {
+    private const val ITERATIONS = 50
+    private const val MAX_COMMITS = 4
+    private const val MAX_ACTIONS = 3
+    private const val MIN_LINES = 60
+    private const val MAX_LINES = 80
+    private const val MAX_EDIT_LINES = 2
+    private const val LINE_VALUES = 5
+  }
+}
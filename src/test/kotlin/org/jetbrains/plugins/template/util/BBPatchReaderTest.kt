@@ -0,0 +1,68 @@
+// Copyright 2000-2020 JetBrains s.r.o. Use of this source code is governed by the Apache 2.0 license that can be found in the LICENSE file.
+package org.jetbrains.plugins.template.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class BBPatchReaderTest {
+
+  @Test
+  fun `plain paths`() {
+    val section = readSection("""
+      diff --git a/src/file name.txt b/src/file name.txt
+      index 0000000000000000000000000000000000000001..0000000000000000000000000000000000000002 100644
+      --- a/src/file name.txt
+      +++ b/src/file name.txt
+      @@ -1 +1 @@
+      -a
+      +b
+    """)
+    assertEquals("src/file name.txt", section.beforeName)
+    assertEquals("src/file name.txt", section.afterName)
+  }
+
+  @Test
+  fun `quoted non-ASCII paths are decoded`() {
+    val section = readSection("""
+      diff --git "a/caf\303\251.txt" "b/caf\303\251.txt"
+      index 0000000000000000000000000000000000000001..0000000000000000000000000000000000000002 100644
+      --- "a/caf\303\251.txt"
+      +++ "b/caf\303\251.txt"
+      @@ -1 +1 @@
+      -a
+      +b
+    """)
+    assertEquals("café.txt", section.beforeName)
+    assertEquals("café.txt", section.afterName)
+  }
+
+  @Test
+  fun `quoted rename without hunks`() {
+    val section = readSection("""
+      diff --git "a/tab\there.txt" b/plain.txt
+      similarity index 100%
+      rename from "tab\there.txt"
+      rename to plain.txt
+    """)
+    assertEquals("tab\there.txt", section.beforeName)
+    assertEquals("plain.txt", section.afterName)
+  }
+
+  @Test
+  fun `quoted added file`() {
+    val section = readSection("""
+      diff --git "a/quote\".txt" "b/quote\".txt"
+      new file mode 100644
+      index 0000000000000000000000000000000000000000..0000000000000000000000000000000000000002
+      --- /dev/null
+      +++ "b/quote\".txt"
+      @@ -0,0 +1 @@
+      +b
+    """)
+    assertNull(section.beforeName)
+    assertEquals("quote\".txt", section.afterName)
+  }
+
+  private fun readSection(diff: String) = BBPatchReader.readAllSections(diff.trimIndent() + "\n").single()
+}